@@ -0,0 +1,70 @@
+package io.github.mortenmolsen.recordreplay;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the two backends of {@link TestCallManager#createRRMock(Class)}: a {@link Proxy} (used for interfaces) and Mockito (used for other classes), both when
+ * creating a mock and when calling it. The mocks answer directly, so only the overhead of the backends is measured.
+ * Run with: gradle jmh -PjmhArgs="MockBackendBenchmark -prof gc"
+ *
+ * @author Morten Meiling Olsen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MockBackendBenchmark {
+
+    private static final InvocationHandler INVOCATION_HANDLER = (proxy, method, args) -> method.getName();
+    private static final Answer<Object> ANSWER = invocation -> invocation.getMethod().getName();
+
+    private Connection proxy;
+    private Connection mockitoMock;
+
+    @Setup
+    public void setUp() {
+        proxy = createProxy();
+        mockitoMock = createMockitoMock();
+    }
+
+    @Benchmark
+    public Connection createProxy() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, INVOCATION_HANDLER);
+    }
+
+    @Benchmark
+    public Connection createMockitoMock() {
+        return Mockito.mock(Connection.class, ANSWER);
+    }
+
+    @Benchmark
+    public String callProxy() {
+        return proxy.getData("request", 42);
+    }
+
+    @Benchmark
+    public String callMockitoMock() {
+        return mockitoMock.getData("request", 42);
+    }
+
+    public interface Connection {
+        String getData(String request, int id);
+    }
+}
@@ -0,0 +1,149 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.messages.Message;
+import lombok.Data;
+
+/**
+ * Compares replaying a recording by reading each record as generic maps, which are then converted to the record and again to the response, with decoding each record
+ * directly as the record class and binding the buffered response directly to its class.
+ * Run with: gradle jmh -PjmhArgs="RecordDecodingBenchmark -prof gc" to see the allocation per replayed recording.
+ *
+ * @author Morten Meiling Olsen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordDecodingBenchmark {
+
+    private static final int NUMBER_OF_RECORDS = 100;
+
+    /**
+     * The number of items in each response.
+     */
+    @Param({"10", "100"})
+    public int responseSize;
+
+    private ObjectMapper objectMapper;
+    private TestDataHandler testDataHandler;
+    private byte[] recording;
+
+    @Setup
+    public void setUp() throws IOException {
+        objectMapper = new ObjectMapper();
+        testDataHandler = new ObjectMapperTestDataHandler(objectMapper);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        testDataHandler.writeHeader(outputStream);
+        try (RecordWriter recordWriter = testDataHandler.writeRecords(outputStream)) {
+            for (int i = 0; i < NUMBER_OF_RECORDS; i++) {
+                BenchmarkRecord record = new BenchmarkRecord();
+                record.setRequest("getItems(" + i + ")");
+                record.setResponse(createResponse(i));
+                recordWriter.write(record);
+            }
+        }
+        recording = outputStream.toByteArray();
+    }
+
+    private Response createResponse(int requestNumber) {
+        Response response = new Response();
+        for (int i = 0; i < responseSize; i++) {
+            Item item = new Item();
+            item.setId(requestNumber * responseSize + i);
+            item.setName("item " + i);
+            item.setPrice(i * 1.25);
+            item.setTags(Arrays.asList("tag" + (i % 3), "tag" + (i % 7)));
+            response.getItems().add(item);
+        }
+        return response;
+    }
+
+    /**
+     * How records were replayed before they were decoded directly: as generic maps, converted to the record, with the response converted once more.
+     */
+    @Benchmark
+    public void mapThenConvert(Blackhole blackhole) throws IOException {
+        try (RecordIterator records = TestDataFiles.readRecords(new ByteArrayInputStream(recording), testDataHandler)) {
+            while (records.hasNext()) {
+                GenericRecord record = objectMapper.convertValue(records.next(), GenericRecord.class);
+                blackhole.consume(objectMapper.convertValue(record.getResponse(), Response.class));
+            }
+        }
+    }
+
+    /**
+     * How records are replayed by {@link TestDataForReplaying#consumeFirstRecord(Class)} and {@link io.github.mortenmolsen.recordreplay.calls.ExpectedCall#replay}.
+     */
+    @Benchmark
+    public void typedSinglePass(Blackhole blackhole) throws IOException {
+        try (RecordIterator records = TestDataFiles.readRecords(new ByteArrayInputStream(recording), testDataHandler)) {
+            while (records.hasNext()) {
+                BenchmarkRecord record = records.next(BenchmarkRecord.class, testDataHandler);
+                blackhole.consume(testDataHandler.convertValue(record.getResponse(), Response.class));
+            }
+        }
+    }
+
+    /**
+     * A record as it was read before records were decoded directly, with the response as generic maps.
+     */
+    @Data
+    public static class GenericRecord {
+        private String request;
+        private Object response;
+        private List<Object> messages = new ArrayList<>();
+    }
+
+    public static class BenchmarkRecord extends Record<BenchmarkMessage> {
+    }
+
+    public static class BenchmarkMessage extends Message<String> {
+
+        public BenchmarkMessage(@JsonProperty("messageObject") String messageObject) {
+            super(messageObject);
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Benchmark message: " + messageObject;
+        }
+    }
+
+    @Data
+    public static class Response {
+        private List<Item> items = new ArrayList<>();
+    }
+
+    @Data
+    public static class Item {
+        private long id;
+        private String name;
+        private double price;
+        private List<String> tags;
+    }
+}
@@ -0,0 +1,154 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.testdata.RecordDecodingBenchmark.BenchmarkRecord;
+import io.github.mortenmolsen.recordreplay.testdata.RecordDecodingBenchmark.Item;
+import io.github.mortenmolsen.recordreplay.testdata.RecordDecodingBenchmark.Response;
+
+/**
+ * Compares loading the same recording written as JSON by the {@link ObjectMapperTestDataHandler} and as Smile by the {@link SmileTestDataHandler}.
+ * The size of each recording is printed during the setup.
+ * Run with: gradle jmh -PjmhArgs="TestDataFormatBenchmark -prof gc", or run {@link #main(String[])} to check that Smile recordings are parsed at least
+ * {@link #REQUIRED_SPEEDUP} times faster than JSON recordings.
+ *
+ * @author Morten Meiling Olsen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TestDataFormatBenchmark {
+
+    private static final int NUMBER_OF_RECORDS = 100;
+
+    /**
+     * The number of different requests, so each request is made a number of times - like the same lookup made throughout a test.
+     */
+    private static final int NUMBER_OF_REQUESTS = 10;
+
+    /**
+     * How many times faster a Smile recording must be parsed than the same JSON recording.
+     */
+    private static final double REQUIRED_SPEEDUP = 3;
+
+    @Param({"json", "smile"})
+    public String format;
+
+    /**
+     * The number of items in each response.
+     */
+    @Param({"10", "100"})
+    public int responseSize;
+
+    private TestDataHandler testDataHandler;
+    private byte[] recording;
+
+    @Setup
+    public void setUp() throws IOException {
+        testDataHandler = format.equals("smile") ? new SmileTestDataHandler() : new ObjectMapperTestDataHandler(new ObjectMapper());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        testDataHandler.writeHeader(outputStream);
+        try (RecordWriter recordWriter = testDataHandler.writeRecords(outputStream)) {
+            for (int i = 0; i < NUMBER_OF_RECORDS; i++) {
+                BenchmarkRecord record = new BenchmarkRecord();
+                record.setRequest("getItems(category=" + (i % NUMBER_OF_REQUESTS) + ", page=0, pageSize=" + responseSize + ", sort=name, includeTags=true)");
+                record.setResponse(createResponse(i));
+                recordWriter.write(record);
+            }
+        }
+        recording = outputStream.toByteArray();
+        System.out.println("Size of the " + format + " recording: " + recording.length + " bytes");
+    }
+
+    private Response createResponse(int requestNumber) {
+        Response response = new Response();
+        for (int i = 0; i < responseSize; i++) {
+            Item item = new Item();
+            item.setId(requestNumber * responseSize + i);
+            item.setName("item " + i);
+            item.setPrice(i * 1.25);
+            item.setTags(Arrays.asList("tag" + (i % 3), "tag" + (i % 7)));
+            response.getItems().add(item);
+        }
+        return response;
+    }
+
+    /**
+     * Runs the benchmarks and fails if Smile recordings are not parsed {@link #REQUIRED_SPEEDUP} times faster than JSON recordings, for every response size. The
+     * speedup of loading the records (which includes binding the responses, which takes the same time for both formats) is printed as well.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Collection<RunResult> results = new Runner(new OptionsBuilder().include(TestDataFormatBenchmark.class.getSimpleName()).build()).run();
+        Map<String, Double> jsonScores = new HashMap<>();
+        Map<String, Double> smileScores = new HashMap<>();
+        for (RunResult result : results) {
+            String benchmark = result.getPrimaryResult().getLabel() + " with response size " + result.getParams().getParam("responseSize");
+            double score = result.getPrimaryResult().getScore();
+            (result.getParams().getParam("format").equals("smile") ? smileScores : jsonScores).put(benchmark, score);
+        }
+        boolean fastEnough = true;
+        for (Map.Entry<String, Double> jsonScore : jsonScores.entrySet()) {
+            double speedup = jsonScore.getValue() / smileScores.get(jsonScore.getKey());
+            System.out.printf("%s: Smile is %.1f times faster than JSON%n", jsonScore.getKey(), speedup);
+            if (jsonScore.getKey().startsWith("parse ")) {
+                fastEnough &= speedup >= REQUIRED_SPEEDUP;
+            }
+        }
+        if (!fastEnough) {
+            throw new IllegalStateException("Smile recordings must be parsed at least " + REQUIRED_SPEEDUP + " times faster than JSON recordings.");
+        }
+    }
+
+    /**
+     * Reads every record of the recording into its buffered tokens, as it is done when the recording is cached.
+     */
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException {
+        try (RecordIterator records = TestDataFiles.readRecords(new ByteArrayInputStream(recording), testDataHandler)) {
+            while (records.hasNext()) {
+                blackhole.consume(records.nextBuffered());
+            }
+        }
+    }
+
+    /**
+     * Loads every record of the recording and binds its response, as it is done when replaying.
+     */
+    @Benchmark
+    public void load(Blackhole blackhole) throws IOException {
+        try (RecordIterator records = TestDataFiles.readRecords(new ByteArrayInputStream(recording), testDataHandler)) {
+            while (records.hasNext()) {
+                BenchmarkRecord record = records.next(BenchmarkRecord.class, testDataHandler);
+                blackhole.consume(testDataHandler.convertValue(record.getResponse(), Response.class));
+            }
+        }
+    }
+}
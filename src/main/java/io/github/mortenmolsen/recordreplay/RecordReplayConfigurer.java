@@ -4,9 +4,12 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.mortenmolsen.recordreplay.messages.Message;
 import io.github.mortenmolsen.recordreplay.testdata.ArgumentStringGenerator;
+import io.github.mortenmolsen.recordreplay.testdata.ObjectMapperTestDataHandler;
 import io.github.mortenmolsen.recordreplay.testdata.Record;
 import io.github.mortenmolsen.recordreplay.messages.MessageCollector;
+import io.github.mortenmolsen.recordreplay.testdata.SmileTestDataHandler;
 import io.github.mortenmolsen.recordreplay.testdata.TestData;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataHandler;
 
 /**
  * A configurer used by the {@link RecordReplayTestSpringConfiguration} to customize the beans.
@@ -24,12 +27,35 @@ public abstract class RecordReplayConfigurer<M extends Message> {
         // does nothing by default, can be overwritten to add real instances that the test call manager needs to know about
     }
 
+    protected void configureReplayingTestCallManager(ReplayingTestCallManager<M> replayingTestCallManager) {
+        // does nothing by default, can be overwritten to for instance allow calls to be replayed out of order
+    }
+
     protected void configureMessageCollector(MessageCollector<M> messageCollector) {
         // do nothing, can be overwritten to set an "unexpected" message acceptor - ie. which unexpected messages are "ok"
     }
 
     protected abstract void configureTestData(TestData testData);
 
+    /**
+     * Creates the handler used to read and write the test data. It is set on the test data before {@link #configureTestData(TestData)} is called.
+     * By default the data is written as JSON, sub classes may override this to select another format, like the binary {@link SmileTestDataHandler}:
+     * <pre>return new SmileTestDataHandler(this::configureObjectMapper);</pre>
+     * @param objectMapper the (JSON) object mapper, configured by {@link #configureObjectMapper(ObjectMapper)}.
+     */
+    protected TestDataHandler createTestDataHandler(ObjectMapper objectMapper) {
+        return new ObjectMapperTestDataHandler(objectMapper);
+    }
+
+    /**
+     * Creates the handler of the test data for the tools working on the recordings outside of the tests, like the {@link RecordingAnalyzer}.
+     */
+    public final TestDataHandler createTestDataHandler() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        configureObjectMapper(objectMapper);
+        return createTestDataHandler(objectMapper);
+    }
+
     protected void configureArgumentStringGenerator(ArgumentStringGenerator argumentStringGenerator) {
         // no extra configuration done by default
     }
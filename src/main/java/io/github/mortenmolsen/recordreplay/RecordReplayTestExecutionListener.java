@@ -1,5 +1,6 @@
 package io.github.mortenmolsen.recordreplay;
 
+import io.github.mortenmolsen.recordreplay.testdata.RecordingWriteBehind;
 import io.github.mortenmolsen.recordreplay.testdata.TestData;
 import org.springframework.test.context.TestContext;
 import org.springframework.test.context.support.AbstractTestExecutionListener;
@@ -23,4 +24,10 @@ public class RecordReplayTestExecutionListener extends AbstractTestExecutionList
     public void afterTestMethod(TestContext testContext) throws Exception {
         testContext.getApplicationContext().getBean(TestData.class).finish();
     }
+
+    @Override
+    public void afterTestClass(TestContext testContext) throws Exception {
+        // recordings written in the background must be complete before other tests, which might replay them, are run
+        RecordingWriteBehind.awaitOutstandingWrites();
+    }
 }
@@ -32,7 +32,10 @@ public class RecordReplayTestSpringConfiguration<M extends Message>  {
     public ReplayingTestCallManager<M> replayingTestCallManager(
             TestDataForReplaying testData, ObjectMapper objectMapper,
             ArgumentStringGenerator argumentStringGenerator, MessageSender<M> messageSender) throws IOException {
-        return new ReplayingTestCallManager<>(configurer.getRecordClass(), testData, objectMapper, argumentStringGenerator, messageSender);
+        ReplayingTestCallManager<M> replayingTestCallManager = new ReplayingTestCallManager<>(configurer.getRecordClass(), testData, objectMapper, argumentStringGenerator,
+                messageSender);
+        configurer.configureReplayingTestCallManager(replayingTestCallManager);
+        return replayingTestCallManager;
     }
 
     @Bean
@@ -63,6 +66,7 @@ public class RecordReplayTestSpringConfiguration<M extends Message>  {
     @Profile(RRProfiles.REPLAY)
     public TestDataForReplaying replayTestData() {
         TestDataForReplaying testData = new TestDataForReplaying(configurer.getPathToData());
+        testData.setTestDataHandler(configurer.createTestDataHandler(objectMapper()));
         configurer.configureTestData(testData);
         return testData;
     }
@@ -71,6 +75,7 @@ public class RecordReplayTestSpringConfiguration<M extends Message>  {
     @Profile(RRProfiles.RECORD)
     public TestDataForRecording recordingTestData() {
         TestDataForRecording testData = new TestDataForRecording(configurer.getPathToData());
+        testData.setTestDataHandler(configurer.createTestDataHandler(objectMapper()));
         configurer.configureTestData(testData);
         return testData;
     }
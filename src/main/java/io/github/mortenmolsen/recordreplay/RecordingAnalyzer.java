@@ -0,0 +1,214 @@
+package io.github.mortenmolsen.recordreplay;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.messages.Message;
+import io.github.mortenmolsen.recordreplay.testdata.Record;
+import io.github.mortenmolsen.recordreplay.testdata.SharedResponseStore;
+import io.github.mortenmolsen.recordreplay.testdata.TestData;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataFiles;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForReplaying;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataHandler;
+import lombok.Getter;
+
+/**
+ * Reports what the recordings of a project cost: the size, number of records and messages, largest responses and parse time of each recording.
+ * The recordings are read just like when they are replayed - by a {@link TestDataForReplaying} set up by the {@link RecordReplayConfigurer} of the project - and the
+ * recordings are analyzed in parallel.
+ * <p>
+ * Usage: {@code RecordingAnalyzer <configurer class> [<json report file>]}. The configurer class must have a no-argument constructor. The report is printed as a table,
+ * slowest recording first, and written as JSON if a file is given.
+ * Only recordings in files of their own are analyzed, not those in a {@link io.github.mortenmolsen.recordreplay.testdata.TestDataPack}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class RecordingAnalyzer<M extends Message<?>> {
+
+    /**
+     * The number of largest responses reported for each recording.
+     */
+    private static final int LARGEST_RESPONSES = 5;
+
+    private final RecordReplayConfigurer<M> configurer;
+    private final TestDataHandler testDataHandler;
+
+    public RecordingAnalyzer(RecordReplayConfigurer<M> configurer) {
+        this.configurer = configurer;
+        this.testDataHandler = configurer.createTestDataHandler();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: " + RecordingAnalyzer.class.getName() + " <configurer class> [<json report file>]");
+            System.exit(1);
+        }
+        RecordReplayConfigurer<?> configurer = (RecordReplayConfigurer<?>) Class.forName(args[0]).newInstance();
+        List<RecordingReport> reports = new RecordingAnalyzer<>(configurer).analyze();
+        printTable(reports);
+        if (args.length == 2) {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(Paths.get(args[1]).toFile(), reports);
+            System.out.println("Wrote: " + args[1]);
+        }
+    }
+
+    /**
+     * @return the report of each recording, slowest to parse first.
+     */
+    public List<RecordingReport> analyze() throws IOException {
+        Path pathToData = Paths.get(configurer.getPathToData());
+        List<Path> recordings;
+        try (Stream<Path> files = Files.list(pathToData)) {
+            recordings = files.filter(this::isRecording).filter(path -> !isReplacedByUncompressedFile(path)).collect(Collectors.toList());
+        }
+        List<RecordingReport> reports = recordings.parallelStream().map(this::analyze).collect(Collectors.toList());
+        reports.sort(Comparator.comparingLong(RecordingReport::getParseNanos).reversed());
+        return reports;
+    }
+
+    private boolean isRecording(Path path) {
+        String fileName = path.getFileName().toString();
+        return Files.isRegularFile(path)
+                && (fileName.endsWith(testDataHandler.getExtension()) || fileName.endsWith(testDataHandler.getExtension() + TestDataFiles.COMPRESSED_EXTENSION));
+    }
+
+    /**
+     * @return whether the file is compressed and an uncompressed file of the same recording exists. The uncompressed file is the one replayed, so only that is analyzed.
+     */
+    private static boolean isReplacedByUncompressedFile(Path path) {
+        return TestDataFiles.isCompressed(path) && Files.exists(path.resolveSibling(withoutCompressedExtension(path.getFileName().toString())));
+    }
+
+    private static String withoutCompressedExtension(String fileName) {
+        return fileName.endsWith(TestDataFiles.COMPRESSED_EXTENSION) ? fileName.substring(0, fileName.length() - TestDataFiles.COMPRESSED_EXTENSION.length()) : fileName;
+    }
+
+    private RecordingReport analyze(Path pathToFile) {
+        RecordingReport report = new RecordingReport(pathToFile.getFileName().toString());
+        try {
+            report.size = Files.size(pathToFile);
+            String fileName = withoutCompressedExtension(pathToFile.getFileName().toString());
+            // the file is named <test class>_<test method><extension>
+            String testName = fileName.substring(0, fileName.length() - testDataHandler.getExtension().length());
+            int separator = testName.indexOf('_');
+            if (separator < 0) {
+                throw new IllegalStateException("Not named as a recording: " + pathToFile);
+            }
+
+            TestDataForReplaying testData = new TestDataForReplaying(pathToFile.getParent().toString());
+            testData.setTestDataHandler(testDataHandler);
+            configurer.configureTestData(testData);
+            // the recordings must only be read, never converted
+            testData.setConverter(null);
+
+            List<ResponseSize> responseSizes = new ArrayList<>();
+            long start = System.nanoTime();
+            testData.init(testName.substring(0, separator), testName.substring(separator + 1));
+            report.parseNanos += System.nanoTime() - start;
+            try {
+                while (testData.hasData()) {
+                    start = System.nanoTime();
+                    Record<M> record = testData.consumeFirstRecord(configurer.getRecordClass());
+                    report.parseNanos += System.nanoTime() - start;
+                    report.records++;
+                    report.messages += record.getMessages().size();
+                    responseSizes.add(new ResponseSize(record.getRequest(), getResponseSize(record, pathToFile)));
+                }
+            }
+            finally {
+                testData.finish();
+            }
+            responseSizes.sort(Comparator.comparingLong(ResponseSize::getSize).reversed());
+            report.largestResponses = new ArrayList<>(responseSizes.subList(0, Math.min(LARGEST_RESPONSES, responseSizes.size())));
+        }
+        catch (IOException | RuntimeException e) {
+            report.failure = e.toString();
+        }
+        return report;
+    }
+
+    /**
+     * @return the size of the serialized response, which for a spilled or shared response is the size of its file.
+     */
+    private long getResponseSize(Record<M> record, Path pathToFile) throws IOException {
+        if (record.getSharedResponseHash() != null) {
+            return Files.size(pathToFile.resolveSibling(SharedResponseStore.DIRECTORY).resolve(record.getSharedResponseHash() + testDataHandler.getExtension()));
+        }
+        if (record.getSpilledResponse() != null) {
+            String recordingName = withoutCompressedExtension(pathToFile.getFileName().toString());
+            return Files.size(pathToFile.resolveSibling(recordingName + TestData.SPILLED_RESPONSES_EXTENSION).resolve(record.getSpilledResponse()));
+        }
+        if (record.getResponse() == null) {
+            return 0;
+        }
+        return testDataHandler.serialize(Collections.singletonList(record.getResponse())).length;
+    }
+
+    private static void printTable(List<RecordingReport> reports) {
+        System.out.println(String.format("%-60s %12s %8s %9s %10s  %s", "Recording", "Size", "Records", "Messages", "Parse ms", "Largest response"));
+        for (RecordingReport report : reports) {
+            String largestResponse = report.failure != null ? "FAILED: " + report.failure
+                    : report.largestResponses.isEmpty() ? "" : report.largestResponses.get(0).toString();
+            System.out.println(String.format("%-60s %12d %8d %9d %10.1f  %s", report.recording, report.size, report.records, report.messages,
+                    report.parseNanos / (double) TimeUnit.MILLISECONDS.toNanos(1), largestResponse));
+        }
+        long totalParseNanos = reports.stream().mapToLong(RecordingReport::getParseNanos).sum();
+        System.out.println(reports.size() + " recordings, " + reports.stream().mapToLong(RecordingReport::getSize).sum() + " bytes, "
+                + TimeUnit.NANOSECONDS.toMillis(totalParseNanos) + " ms parse time in total.");
+    }
+
+    /**
+     * The numbers of a single recording.
+     */
+    @Getter
+    public static class RecordingReport {
+
+        private final String recording;
+        private long size;
+        private int records;
+        private int messages;
+
+        /**
+         * The time spent reading the records, as when replaying them (without replaying the responses).
+         */
+        private long parseNanos;
+        private List<ResponseSize> largestResponses = Collections.emptyList();
+        private @Nullable String failure;
+
+        private RecordingReport(String recording) {
+            this.recording = recording;
+        }
+    }
+
+    /**
+     * The size of the serialized response to a request.
+     */
+    @Getter
+    public static class ResponseSize {
+
+        private final String request;
+        private final long size;
+
+        private ResponseSize(String request, long size) {
+            this.request = request;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return request + " (" + size + " bytes)";
+        }
+    }
+}
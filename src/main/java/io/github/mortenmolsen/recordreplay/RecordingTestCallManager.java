@@ -6,22 +6,30 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
 
 import io.github.mortenmolsen.recordreplay.calls.CallWithMessages;
+import io.github.mortenmolsen.recordreplay.calls.ExpectedCall;
 import io.github.mortenmolsen.recordreplay.messages.Message;
 import io.github.mortenmolsen.recordreplay.messages.MessageSender;
 import io.github.mortenmolsen.recordreplay.messages.WaitingInput;
 import io.github.mortenmolsen.recordreplay.testdata.ArgumentStringGenerator;
+import io.github.mortenmolsen.recordreplay.testdata.CallRequest;
 import io.github.mortenmolsen.recordreplay.testdata.Record;
 import io.github.mortenmolsen.recordreplay.testdata.TestDataForRecording;
 import io.github.mortenmolsen.recordreplay.messages.MessageCollector;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import org.junit.Assert;
 import org.junit.Assume;
@@ -36,6 +44,20 @@ public final class RecordingTestCallManager<M extends Message> extends TestCallM
 
     public static final RunMode RUN_MODE = RunMode.ALL;
 
+    /**
+     * Appended to a request that has been truncated, see {@link #maxRequestLength}.
+     */
+    private static final String TRUNCATION_MARKER = "...";
+
+    /**
+     * The threads waiting for the messages of {@link #waitForAsync(WaitingInput)}.
+     */
+    private static final ExecutorService ASYNC_WAITING_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "record-replay-async-waiting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final TestDataForRecording testData;
 
     /**
@@ -45,6 +67,19 @@ public final class RecordingTestCallManager<M extends Message> extends TestCallM
 
     private final MessageCollector<M> messageCollector;
 
+    /**
+     * The acceptors collecting the messages of the records of calls in progress, since other acceptors might be collecting messages at the same time (see
+     * {@link #waitForAsync(WaitingInput)}).
+     */
+    private final Map<Record<M>, MessageCollector.Acceptor<M>> acceptorsByRecord = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Requests longer than this are truncated in the records. The records are still matched by the fingerprint of the full request, so truncating only saves space (and
+     * reading time), at the price of less of the request being shown when it no longer matches. By default requests are not truncated.
+     */
+    @Setter
+    private int maxRequestLength = Integer.MAX_VALUE;
+
     public RecordingTestCallManager(Class<? extends Record<M>> recordClass, MessageCollector<M> messageCollector, TestDataForRecording testData,
                                     ArgumentStringGenerator argumentStringGenerator, MessageSender<M> messageSender) {
         super(recordClass, argumentStringGenerator, messageSender);
@@ -65,11 +100,13 @@ public final class RecordingTestCallManager<M extends Message> extends TestCallM
         }
     }
 
-    @SneakyThrows({InstantiationException.class, IllegalAccessException.class})
     @Override
-    protected Record<M> getRecord(String argumentsString) {
-        Record<M> resultingTransaction = recordClass.newInstance();
-        resultingTransaction.setRequest(argumentsString);
+    protected Record<M> getRecord(CallRequest request) {
+        Record<M> resultingTransaction = createRecord();
+        String requestString = request.toString();
+        resultingTransaction.setRequest(requestString.length() > maxRequestLength ? requestString.substring(0, maxRequestLength) + TRUNCATION_MARKER : requestString);
+        resultingTransaction.setRequestFingerprint(request.getFingerprint());
+        resultingTransaction.setCallStream(getCallStreamKey());
         return resultingTransaction;
     }
 
@@ -79,12 +116,13 @@ public final class RecordingTestCallManager<M extends Message> extends TestCallM
             // just forward to real instance, ignore for the purpose of the framework
             return method.invoke(getRealInstance(invokedOn), args);
         }
+        ExpectedCall<?> currentCall = getCurrentCall();
         @Nullable Object result;
         try {
             if (currentCall instanceof CallWithMessages) {
                 // the call is one that also must collect messages afterwards so set up the collector
                 //noinspection unchecked
-                messageCollector.startAccepting(((CallWithMessages)currentCall).waitingInput.getAcceptor());
+                startAccepting(((CallWithMessages<?, M>) currentCall).waitingInput, record);
             }
             result = method.invoke(getRealInstance(invokedOn), args);
         }
@@ -99,23 +137,52 @@ public final class RecordingTestCallManager<M extends Message> extends TestCallM
     //NOTE: this method requires that the collection of messages has been instigated from somewhere else.
     @Override
     protected List<M> collectMessages(WaitingInput<M> waitingInput, Record<M> record) {
-        List<M> collectedMessages = messageCollector.getCollectedMessages();
+        List<M> collectedMessages = messageCollector.getCollectedMessages(acceptorsByRecord.remove(record));
         record.getMessages().addAll(collectedMessages);
         return collectedMessages;
     }
 
+    private void startAccepting(WaitingInput<M> input, Record<M> record) {
+        MessageCollector.Acceptor<M> acceptor = input.getAcceptor();
+        acceptorsByRecord.put(record, acceptor);
+        messageCollector.startAccepting(acceptor);
+    }
+
     @Override
     public List<M> getMessagesByWaitingFor(WaitingInput<M> input) throws Exception {
-        if (currentCall != null) {
-            Assert.fail("Cannot wait, a call is already in progress.");
-        }
-        Record<M> record = recordClass.newInstance();
-        record.setRequest("--wait for external action--");
+        Record<M> record = createWaitingRecord();
         testData.addRecord(record);
-        messageCollector.startAccepting(input.getAcceptor());
+        startAccepting(input, record);
         return collectMessages(input, record);
     }
 
+    @Override
+    protected CompletableFuture<List<M>> getMessagesByWaitingForAsync(WaitingInput<M> input) {
+        Record<M> record = createWaitingRecord();
+        // the messages are added to the record in the background, so it must not be written until they have been
+        testData.holdRecord(record);
+        startAccepting(input, record);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return collectMessages(input, record);
+            }
+            finally {
+                testData.releaseRecord(record);
+            }
+        }, ASYNC_WAITING_EXECUTOR);
+    }
+
+    private Record<M> createWaitingRecord() {
+        if (getCurrentCall() != null) {
+            Assert.fail("Cannot wait, a call is already in progress.");
+        }
+        Record<M> record = createRecord();
+        record.setRequest(WAIT_FOR_EXTERNAL_ACTION_REQUEST);
+        record.setRequestFingerprint(CallRequest.of(WAIT_FOR_EXTERNAL_ACTION_REQUEST).getFingerprint());
+        record.setCallStream(getCallStreamKey());
+        return record;
+    }
+
     @Override
     public void init(Method testMethod) {
         verifyTestRun(testMethod);
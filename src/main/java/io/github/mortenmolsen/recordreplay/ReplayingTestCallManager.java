@@ -6,15 +6,24 @@ import io.github.mortenmolsen.recordreplay.messages.MessageIdentifier;
 import io.github.mortenmolsen.recordreplay.messages.MessageSender;
 import io.github.mortenmolsen.recordreplay.messages.WaitingInput;
 import io.github.mortenmolsen.recordreplay.testdata.ArgumentStringGenerator;
+import io.github.mortenmolsen.recordreplay.testdata.CallRequest;
 import io.github.mortenmolsen.recordreplay.testdata.Record;
 import io.github.mortenmolsen.recordreplay.testdata.TestDataForReplaying;
+import lombok.Setter;
 import org.junit.Assert;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -27,6 +36,30 @@ public final class ReplayingTestCallManager<M extends Message> extends TestCallM
     protected final ObjectMapper objectMapper;
     private final TestDataForReplaying testData;
 
+    /**
+     * Whether calls may be replayed in another order than they were recorded in. If so, the record used for a call is the first recorded one with the same request,
+     * rather than simply the next record. This is for systems making independent calls whose order varies from run to run.
+     * Records with the same request are still replayed in the order they were recorded in, and records that are never replayed make the test fail.
+     */
+    @Setter
+    private boolean unordered = false;
+
+    /**
+     * Records read ahead (in unordered mode) while looking for the record of a call, by the fingerprint of their request (or by their request, if recorded without a
+     * fingerprint).
+     */
+    private final Map<Object, Deque<Record<M>>> recordsByRequest = new LinkedHashMap<>();
+
+    /**
+     * Whether any of the records read ahead has no fingerprint, in which case they must also be looked up by their request.
+     */
+    private boolean readRecordsWithoutFingerprint = false;
+
+    /**
+     * Records read ahead (in concurrent mode, see {@link TestCallManager}) while looking for the next record of a call stream, by the key of their call stream.
+     */
+    private final Map<String, Deque<Record<M>>> recordsByCallStream = new HashMap<>();
+
     public ReplayingTestCallManager(Class<? extends Record<M>> recordClass, TestDataForReplaying testData, ObjectMapper objectMapper,
                                     ArgumentStringGenerator argumentStringGenerator, MessageSender<M> messageSender) {
         super(recordClass, argumentStringGenerator, messageSender);
@@ -36,21 +69,85 @@ public final class ReplayingTestCallManager<M extends Message> extends TestCallM
 
     @Override
     protected <Q> Q doSimpleCall(Callable<Q> callable, Class<Q> expectedReturnValueClass, Record<M> record) {
-        return testData.getTestDataHandler().convertValue(record.getResponse(), expectedReturnValueClass);
+        return record.bindResponse(expectedReturnValueClass, testData.getTestDataHandler());
     }
 
     @Override
-    protected Record<M> getRecord(String argumentsString) {
+    protected synchronized Record<M> getRecord(CallRequest request) {
+        if (unordered) {
+            return getRecordWithRequest(request);
+        }
+        Record<M> record = getNextRecord();
+        if (!record.isRecordOf(request)) {
+            // only now is the string of the request needed
+            Assert.fail("Call was made to:\n" + request + "\n, but the recorded call was:\n" + record.getRequest() + ".\n" +
+                    " This is not necessarily an error, but it does require the data for this test to be re-recorded.");
+        }
+        return record;
+    }
+
+    /**
+     * @return the next record of the call stream of the current thread.
+     */
+    private Record<M> getNextRecord() {
+        String callStreamKey = getCallStreamKey();
+        if (callStreamKey != null) {
+            // concurrent mode, the records of the different call streams are interleaved in the test data
+            Deque<Record<M>> recordsOfCallStream = recordsByCallStream.get(callStreamKey);
+            if (recordsOfCallStream != null && !recordsOfCallStream.isEmpty()) {
+                return recordsOfCallStream.removeFirst();
+            }
+            while (testData.hasData()) {
+                //noinspection unchecked
+                Record<M> record = testData.consumeFirstRecord(recordClass);
+                if (callStreamKey.equals(record.getCallStream())) {
+                    return record;
+                }
+                recordsByCallStream.computeIfAbsent(record.getCallStream(), key -> new ArrayDeque<>()).addLast(record);
+            }
+            Assert.fail("Call made in call stream: " + callStreamKey + ", but no more calls are recorded in it (perhaps you need to record test data).");
+        }
         if (!testData.hasData()) {
             Assert.fail("Call made, but none is recorded (perhaps you need to record test data).");
         }
         //noinspection unchecked
-        Record<M> record = testData.consumeFirstRecord(recordClass);
-        if (!argumentsString.equals(record.getRequest())) {
-            Assert.fail("Call was made to:\n" + argumentsString + "\n, but the recorded call was:\n" + record.getRequest() + ".\n" +
-                    " This is not necessarily an error, but it does require the data for this test to be re-recorded.");
+        return testData.consumeFirstRecord(recordClass);
+    }
+
+    /**
+     * Finds the first record with the given request. Records are read from the test data until it is found, keeping the records passed on the way for later calls.
+     */
+    private Record<M> getRecordWithRequest(CallRequest request) {
+        Deque<Record<M>> recordsWithRequest = recordsByRequest.get(request.getFingerprint());
+        if ((recordsWithRequest == null || recordsWithRequest.isEmpty()) && readRecordsWithoutFingerprint) {
+            recordsWithRequest = recordsByRequest.get(request.toString());
         }
-        return record;
+        if (recordsWithRequest != null && !recordsWithRequest.isEmpty()) {
+            return recordsWithRequest.removeFirst();
+        }
+        while (testData.hasData()) {
+            //noinspection unchecked
+            Record<M> record = testData.consumeFirstRecord(recordClass);
+            if (record.isRecordOf(request)) {
+                return record;
+            }
+            addRecordReadAhead(record);
+        }
+        Assert.fail("Call was made to:\n" + request + "\n, but no such call is recorded (or it has already been replayed).\n" +
+                " This is not necessarily an error, but it does require the data for this test to be re-recorded.");
+        return null;
+    }
+
+    /**
+     * Keeps a record read ahead in unordered mode, by the fingerprint of its request, or by its request if it has no fingerprint.
+     */
+    private void addRecordReadAhead(Record<M> record) {
+        Object requestKey = record.getRequestFingerprint();
+        if (requestKey == null) {
+            requestKey = record.getRequest();
+            readRecordsWithoutFingerprint = true;
+        }
+        recordsByRequest.computeIfAbsent(requestKey, key -> new ArrayDeque<>()).addLast(record);
     }
 
     @Override
@@ -60,7 +157,8 @@ public final class ReplayingTestCallManager<M extends Message> extends TestCallM
             return null;
         }
         else {
-            return currentCall.replay(record, testData.getTestDataHandler());
+            //noinspection ConstantConditions
+            return getCurrentCall().replay(record, testData.getTestDataHandler());
         }
     }
 
@@ -76,12 +174,13 @@ public final class ReplayingTestCallManager<M extends Message> extends TestCallM
             }
             return Collections.emptyList();
         }
-        List<M> received = new ArrayList<>();
+        WaitingInput.Tally<M> tally = waitingInput.newTally();
+        Predicate<M> acceptPredicate = waitingInput.getAcceptPredicate();
         MessageIdentifier.MessageCheckResult currentResult = MessageIdentifier.MessageCheckResult.NOT_YET;
         for (M message : record.getMessages()) {
-            if (waitingInput.getAcceptPredicate().test(message)) {
-                received.add(message);
-                currentResult = waitingInput.checkReceivedMessages(received);
+            if (acceptPredicate.test(message)) {
+                tally.add(message);
+                currentResult = tally.getResult();
                 if (currentResult == MessageIdentifier.MessageCheckResult.TOO_MANY) {
                     Assert.fail("Got too many messages of type " + message);
                 }
@@ -99,11 +198,51 @@ public final class ReplayingTestCallManager<M extends Message> extends TestCallM
 
     @Override
     protected List<M> getMessagesByWaitingFor(WaitingInput<M> input) throws Exception {
-        return collectMessages(input, testData.consumeFirstRecord(recordClass));
+        Record<M> record;
+        synchronized (this) {
+            record = unordered ? getRecordWithRequest(CallRequest.of(WAIT_FOR_EXTERNAL_ACTION_REQUEST)) : getNextRecord();
+        }
+        return collectMessages(input, record);
+    }
+
+    @Override
+    protected CompletableFuture<List<M>> getMessagesByWaitingForAsync(WaitingInput<M> input) {
+        // the messages are recorded, so there is nothing to wait for
+        CompletableFuture<List<M>> messages = new CompletableFuture<>();
+        try {
+            messages.complete(getMessagesByWaitingFor(input));
+        }
+        catch (Exception | AssertionError e) {
+            messages.completeExceptionally(e);
+        }
+        return messages;
     }
 
     @Override
     public void init(Method testMethod) {
-        // nothing to initialize here.
+        recordsByRequest.clear();
+        readRecordsWithoutFingerprint = false;
+        recordsByCallStream.clear();
+    }
+
+    @Override
+    public void validateAfterTest() {
+        super.validateAfterTest();
+        if (unordered) {
+            // all recorded calls must have been replayed, also those never read ahead
+            while (testData.hasData()) {
+                //noinspection unchecked
+                addRecordReadAhead(testData.consumeFirstRecord(recordClass));
+            }
+            String recordsNotReplayed = recordsByRequest.values()
+                    .stream()
+                    .flatMap(Collection::stream)
+                    .map(Record::getRequest)
+                    .collect(Collectors.joining(", "));
+            recordsByRequest.clear();
+            if (!recordsNotReplayed.isEmpty()) {
+                throw new IllegalStateException("Some recorded calls were not made: " + recordsNotReplayed);
+            }
+        }
     }
 }
@@ -8,6 +8,7 @@ import io.github.mortenmolsen.recordreplay.messages.Message;
 import io.github.mortenmolsen.recordreplay.messages.MessageSender;
 import io.github.mortenmolsen.recordreplay.messages.WaitingInput;
 import io.github.mortenmolsen.recordreplay.testdata.ArgumentStringGenerator;
+import io.github.mortenmolsen.recordreplay.testdata.CallRequest;
 import io.github.mortenmolsen.recordreplay.testdata.Record;
 import lombok.Getter;
 import lombok.Setter;
@@ -15,10 +16,19 @@ import org.junit.Assert;
 import org.mockito.Mockito;
 import org.mockito.stubbing.Answer;
 
+import javax.annotation.Nullable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A test call manager ensures that tests receive the data that they would get from making a call to some object.
@@ -32,20 +42,66 @@ import java.util.stream.Collectors;
 public abstract class TestCallManager<M extends Message> {
 
     /**
-     * Contains the arguments of the last call made. Tests might want to examine this.
+     * The request of the records holding the messages received while waiting (see {@link #waitFor(WaitingInput)}).
      */
-    @Getter
-    private List<Object> argsOfLastCall;
+    protected static final String WAIT_FOR_EXTERNAL_ACTION_REQUEST = "--wait for external action--";
+
+    /**
+     * The constructors of the proxy classes of the interfaces mocked so far (see {@link #createRRMock(Class)}), shared by all managers.
+     */
+    private static final ClassValue<Constructor<?>> PROXY_CONSTRUCTORS = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> clazz) {
+            try {
+                // the proxy class is found through an instance of it, since Proxy.getProxyClass is deprecated
+                Class<?> proxyClass = Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] {clazz}, (proxy, method, args) -> null).getClass();
+                return proxyClass.getConstructor(InvocationHandler.class);
+            }
+            catch (NoSuchMethodException e) {
+                throw new IllegalStateException("Cannot create mock of: " + clazz, e);
+            }
+        }
+    };
+
+    /**
+     * The arguments of a call of a method without parameters, which a {@link Proxy} passes as null.
+     */
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * The call stream the calls of the current thread belong to, see {@link #setCallStreamKey(String)}.
+     */
+    private static final ThreadLocal<String> CALL_STREAM_KEY = new ThreadLocal<>();
+
+    /**
+     * Contains the arguments of the last call made. Tests might want to examine this, see {@link #getArgsOfLastCall()}.
+     */
+    private Object[] argsOfLastCall;
+
+    /**
+     * A stack of the currently expected calls (of the main call stream, see {@link #concurrent}), the next expected call on top.
+     */
+    protected final Deque<ExpectedCall<?>> expectedCalls = new ArrayDeque<>();
 
     /**
-     * A stack of the currently expected calls.
+     * The main call stream, used for all calls unless in {@link #concurrent} mode.
      */
-    protected final Stack<ExpectedCall<?>> expectedCalls = new Stack<>();
+    private final CallStream mainCallStream = new CallStream(null, expectedCalls);
 
     /**
-     * The call currently being processed.
+     * The call streams of concurrent mode, by their key.
      */
-    protected ExpectedCall<?> currentCall;
+    private final Map<String, CallStream> callStreams = new ConcurrentHashMap<>();
+
+    /**
+     * In concurrent mode, the calls made by different threads are independent of each other: each thread has its own stream of expected calls, and the calls of different
+     * threads may be made at the same time. A thread makes its calls in the stream it has been bound to by {@link #setCallStreamKey(String)}, and fails if it is not bound
+     * to one: the stream of a thread must be the same when recording and replaying, which the names of threads (like those of a pool) do not guarantee.
+     * Records are tagged with the key of their call stream (see {@link Record#getCallStream()}), and replayed in order within their stream.
+     * By default all calls are made in a single stream, one call at a time.
+     */
+    @Setter
+    private volatile boolean concurrent = false;
 
     /**
      * This specifies which methods should be ignored as far as the RR framework goes.
@@ -54,8 +110,24 @@ public abstract class TestCallManager<M extends Message> {
      */
     private final Set<Method> excludedMethods = new HashSet<>();
 
+    /**
+     * What is needed to dispatch calls to a method, resolved once per method.
+     */
+    private final Map<Method, MethodDescriptor> methodDescriptors = new ConcurrentHashMap<>();
+
+    /**
+     * The constructor of the {@link #recordClass}, looked up when the first record is created.
+     */
+    private Constructor<? extends Record<M>> recordConstructor;
+
+    /**
+     * The most recently started wait of {@link #waitForAsync(WaitingInput)}, guarded by {@link #asyncWaitLock}.
+     */
+    private CompletableFuture<?> lastAsyncWait = CompletableFuture.completedFuture(null);
+    private final Object asyncWaitLock = new Object();
+
     @Getter
-    private final List<ExpectedCall> completedCalls = new ArrayList<>();
+    private final List<ExpectedCall> completedCalls = Collections.synchronizedList(new ArrayList<>());
     protected final Class<? extends Record<M>> recordClass;
     private final ArgumentStringGenerator argumentStringGenerator;
     protected final MessageSender<M> messageSender;
@@ -76,29 +148,83 @@ public abstract class TestCallManager<M extends Message> {
     public abstract void init(Method testMethod);
 
     /**
-     * Puts a {@link ExpectedCall} on top of the call stack. This essentially tells the manager which call must be coming in next.
+     * Binds the current thread to the call stream with the given key (see {@link #concurrent}), or unbinds it if the key is null.
+     */
+    public static void setCallStreamKey(@Nullable String callStreamKey) {
+        if (callStreamKey != null) {
+            CALL_STREAM_KEY.set(callStreamKey);
+        }
+        else {
+            CALL_STREAM_KEY.remove();
+        }
+    }
+
+    /**
+     * Puts a {@link ExpectedCall} on top of the call stack (of the call stream of the current thread). This essentially tells the manager which call must be coming in next.
      */
     public void expectCall(ExpectedCall<?> expectedCall) {
+        expectCall(getCallStream(), expectedCall);
+    }
+
+    /**
+     * Puts a {@link ExpectedCall} on top of the call stack of the call stream with the given key, see {@link #concurrent}.
+     */
+    public void expectCall(String callStreamKey, ExpectedCall<?> expectedCall) {
+        expectCall(callStreams.computeIfAbsent(callStreamKey, key -> new CallStream(key, new ArrayDeque<>())), expectedCall);
+    }
+
+    private void expectCall(CallStream callStream, ExpectedCall<?> expectedCall) {
         if (expectedCall instanceof CompositeExpectedCall) {
             // special call that is really just a container for multiple actual calls
             ((CompositeExpectedCall) expectedCall).getCalls()
-                    .forEach(call -> expectCall(call));
+                    .forEach(call -> expectCall(callStream, call));
         }
         else {
-            expectedCalls.push(expectedCall);
+            synchronized (callStream) {
+                callStream.expectedCalls.push(expectedCall);
+            }
         }
     }
 
+    /**
+     * @return the call stream of the current thread.
+     */
+    private CallStream getCallStream() {
+        if (!concurrent) {
+            return mainCallStream;
+        }
+        String callStreamKey = CALL_STREAM_KEY.get();
+        if (callStreamKey == null) {
+            throw new IllegalStateException("The thread: " + Thread.currentThread().getName() + " is not bound to a call stream, which is required in concurrent mode"
+                    + " (see setCallStreamKey).");
+        }
+        return callStreams.computeIfAbsent(callStreamKey, key -> new CallStream(key, new ArrayDeque<>()));
+    }
+
+    /**
+     * @return the key of the call stream of the current thread, or null if not in {@link #concurrent} mode.
+     */
+    protected @Nullable String getCallStreamKey() {
+        return getCallStream().key;
+    }
+
+    /**
+     * @return the call currently being processed (by the call stream of the current thread).
+     */
+    protected @Nullable ExpectedCall<?> getCurrentCall() {
+        return getCallStream().currentCall;
+    }
+
     /**
      * This method makes it possible to simply get the result of a callable, in recording mode, it will record and return the result, in replay it will replay the result.
      * The callable is assumed to have no "side-effect", meaning any messages to also record, as this is not handled.
      */
     public final <Q> Q simpleCall(Callable<Q> callable, Class<Q> expectedReturnValueClass, String callIdentifier) {
-        if (currentCall != null) {
+        if (getCurrentCall() != null) {
             Assert.fail("A call is already in progress.");
         }
         argsOfLastCall = null;
-        return doSimpleCall(callable, expectedReturnValueClass, getRecord(callIdentifier));
+        return doSimpleCall(callable, expectedReturnValueClass, getRecord(CallRequest.of(callIdentifier)));
     }
 
     protected abstract  <Q> Q doSimpleCall(Callable<Q> callable, Class<Q> expectedReturnValueClass, Record<M> record);
@@ -107,60 +233,23 @@ public abstract class TestCallManager<M extends Message> {
      * Does preliminary and final work around the actual call ({@link #doCall(Class, Method, Object[], Record)} ).
      */
     public final <Q> Q call(Class invokedOn, Method method, Object[] args, Class<Q> returnValueClass) throws Throwable {
-        if (isExcludedMethod(method)) {
+        MethodDescriptor methodDescriptor = getMethodDescriptor(method);
+        if (methodDescriptor.excluded) {
             // excluded method - none of the logic below applies, but the subclass must be allowed to handle (it must be forwarded to the real instance in recording mode)
             //noinspection unchecked
             return (Q) doCall(invokedOn, method, args, null);
         }
 
-        argsOfLastCall = args != null ? Collections.unmodifiableList(Arrays.asList(args)) : null;
-        String methodName = method.getName();
-
-        if (expectedCalls.empty()) {
-            // we might have a wildcard call...
-            if (getPreviousCall() instanceof WildcardCall) {
-                try {
-                    getPreviousCall().validatePendingCall(methodName, returnValueClass);
-
-                    // ... indeed we have a wildcard call so add it and re-invoke method
-                    expectCall(getPreviousCall());
-                    return call(invokedOn, method, args, returnValueClass);
-                } catch (ExpectedCall.CallValidationException e) {
-                    //... not a wildcard call, so do nothing, it will fail below
-                }
-            }
-            Assert.fail("Call made to: " + methodName + ", but no call is expected.");
+        argsOfLastCall = args;
+        CallStream callStream = getCallStream();
+        ExpectedCall<?> currentCall;
+        synchronized (callStream) {
+            currentCall = nextExpectedCall(callStream, methodDescriptor.name, returnValueClass);
+            callStream.currentCall = currentCall;
         }
-        if (currentCall != null) {
-            Assert.fail("A call is already in progress.");
-        }
-        currentCall = expectedCalls.pop();
 
-        try {
-            currentCall.validatePendingCall(methodName, returnValueClass);
-        } catch (ExpectedCall.CallValidationException e) {
-            if (currentCall instanceof WildcardCall) {
-                // the current call is a wildcard call - so we must assume that it was not called anyway, just recall method
-                currentCall = null;
-                return call(invokedOn, method, args, returnValueClass);
-            }
-            else if (getPreviousCall() instanceof WildcardCall) {
-                // the previous call was a wildcard call, so test if this is another occurrence of that call
-                try {
-                    getPreviousCall().validatePendingCall(methodName, returnValueClass);
-
-                    // this is another call to the wildcard call, put the just popped call back on the stack and add the wildcard call again
-                    expectedCalls.push(currentCall);
-                    expectedCalls.push(getPreviousCall());
-                    currentCall = null;
-                    return call(invokedOn, method, args, returnValueClass);
-                } catch (ExpectedCall.CallValidationException e2) {
-                    // not a wildcard call, it will fail below
-                }
-            }
-            Assert.fail(e.getMessage());
-        }
-        Record<M> record = getRecord(args != null && args.length > 0 ? method.getName() + ": " + argumentStringGenerator.generateString(args) : method.getName());
+        Record<M> record = getRecord(args != null && args.length > 0 ? CallRequest.of(methodDescriptor.recordKeyPrefix, args, argumentStringGenerator)
+                : CallRequest.of(methodDescriptor.name));
         boolean callValidationFailed = false;
         try {
             Object result = doCall(invokedOn, method, args, record);
@@ -183,11 +272,14 @@ public abstract class TestCallManager<M extends Message> {
 
         } finally {
             completedCalls.add(currentCall);
-            currentCall = null;
+            synchronized (callStream) {
+                callStream.previousCall = currentCall;
+                callStream.currentCall = null;
+            }
             if (!callValidationFailed) {
-                if (getPreviousCall() instanceof CallWithMessages) {
+                if (currentCall instanceof CallWithMessages) {
                     //noinspection unchecked
-                    collectMessages(((CallWithMessages<Q,M>) getPreviousCall()).waitingInput, record).forEach(message -> messageSender.addToQueue(message));
+                    collectMessages(((CallWithMessages<Q,M>) currentCall).waitingInput, record).forEach(message -> messageSender.addToQueue(message));
                 }
                 if (optionalPostCallProcessing != null) {
                     optionalPostCallProcessing.run();
@@ -196,8 +288,100 @@ public abstract class TestCallManager<M extends Message> {
         }
     }
 
-    private ExpectedCall<?> getPreviousCall() {
-        return completedCalls.size() > 0 ? completedCalls.get(completedCalls.size() - 1) : null;
+    /**
+     * Finds the expected call matching the call being made. The call must be the next expected call, except that:
+     * <ul>
+     * <li>wildcard calls that do not match are skipped (they were simply not made)</li>
+     * <li>a call matching the previous call is another occurrence of that call, if the previous call is a wildcard call that has not yet been repeated its maximum
+     * number of times</li>
+     * </ul>
+     * Skipped wildcard calls are removed and a repeated call is taken directly from the previous call, so each call is matched in constant (amortized) time.
+     */
+    private ExpectedCall<?> nextExpectedCall(CallStream callStream, String methodName, Class<?> returnValueClass) {
+        while (true) {
+            if (callStream.expectedCalls.isEmpty()) {
+                // we might have a wildcard call...
+                if (canRepeatPreviousCall(callStream, methodName, returnValueClass)) {
+                    // ... indeed we have a wildcard call
+                    return repeatPreviousCall(callStream);
+                }
+                Assert.fail("Call made to: " + methodName + ", but no call is expected.");
+            }
+            if (callStream.currentCall != null) {
+                Assert.fail("A call is already in progress.");
+            }
+            ExpectedCall<?> expectedCall = callStream.expectedCalls.pop();
+            try {
+                expectedCall.validatePendingCall(methodName, returnValueClass);
+                callStream.previousCallRepetitions = 1;
+                return expectedCall;
+            } catch (ExpectedCall.CallValidationException e) {
+                if (expectedCall instanceof WildcardCall) {
+                    // the expected call is a wildcard call - so we must assume that it was not called anyway, try the next expected call
+                    continue;
+                }
+                else if (canRepeatPreviousCall(callStream, methodName, returnValueClass)) {
+                    // this is another call to the previous wildcard call, the popped call is still expected after it
+                    callStream.expectedCalls.push(expectedCall);
+                    return repeatPreviousCall(callStream);
+                }
+                Assert.fail(e.getMessage());
+            }
+        }
+    }
+
+    private boolean canRepeatPreviousCall(CallStream callStream, String methodName, Class<?> returnValueClass) {
+        ExpectedCall<?> previousCall = callStream.previousCall;
+        if (!(previousCall instanceof WildcardCall) || callStream.previousCallRepetitions >= ((WildcardCall<?>) previousCall).maxRepetitions) {
+            return false;
+        }
+        try {
+            previousCall.validatePendingCall(methodName, returnValueClass);
+            return true;
+        } catch (ExpectedCall.CallValidationException e) {
+            //... not a wildcard call
+            return false;
+        }
+    }
+
+    private ExpectedCall<?> repeatPreviousCall(CallStream callStream) {
+        if (callStream.currentCall != null) {
+            Assert.fail("A call is already in progress.");
+        }
+        callStream.previousCallRepetitions++;
+        return callStream.previousCall;
+    }
+
+    /**
+     * @return the arguments of the last call made, or null if the last call was a {@link #simpleCall(Callable, Class, String)}.
+     */
+    public List<Object> getArgsOfLastCall() {
+        return argsOfLastCall != null ? Collections.unmodifiableList(Arrays.asList(argsOfLastCall)) : null;
+    }
+
+    /**
+     * @return a new (empty) record of the {@link #recordClass}.
+     */
+    protected Record<M> createRecord() {
+        try {
+            if (recordConstructor == null) {
+                recordConstructor = recordClass.getDeclaredConstructor();
+                recordConstructor.setAccessible(true);
+            }
+            return recordConstructor.newInstance();
+        }
+        catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create record of class: " + recordClass, e);
+        }
+    }
+
+    private MethodDescriptor getMethodDescriptor(Method method) {
+        MethodDescriptor methodDescriptor = methodDescriptors.get(method);
+        if (methodDescriptor == null) {
+            methodDescriptor = new MethodDescriptor(method, excludedMethods.contains(method));
+            methodDescriptors.put(method, methodDescriptor);
+        }
+        return methodDescriptor;
     }
 
     /**
@@ -206,10 +390,10 @@ public abstract class TestCallManager<M extends Message> {
     protected abstract List<M> collectMessages(WaitingInput<M> waitingInput, Record<M> record);
 
     /**
-     * @param argumentsString the generated string that identifies the call arguments.
+     * @param request the request that identifies the call and its arguments.
      * @return the record that is to be used by the next call.
      */
-    protected abstract Record<M> getRecord(String argumentsString);
+    protected abstract Record<M> getRecord(CallRequest request);
 
     /**
      * Performs the actual call of the method with the given arguments.
@@ -225,20 +409,65 @@ public abstract class TestCallManager<M extends Message> {
 
     protected abstract List<M> getMessagesByWaitingFor(WaitingInput<M> input) throws Exception;
 
+    /**
+     * Waits for some messages based on the input in the background, so that calls can be made while the messages are coming in, and forwards the messages to the sender
+     * queue. Several waits can be in progress at the same time (see {@link io.github.mortenmolsen.recordreplay.messages.MessageCollector} for how the messages are shared
+     * between them). When replaying, the recorded messages are collected right away.
+     * <p>
+     * The messages of the waits are forwarded to the sender queue in the order the waits were started, no matter when the messages come in, so the returned future is not
+     * completed before those of the waits started before it.
+     */
+    public final CompletableFuture<List<M>> waitForAsync(WaitingInput<M> input) {
+        CompletableFuture<List<M>> messages = getMessagesByWaitingForAsync(input);
+        synchronized (asyncWaitLock) {
+            CompletableFuture<List<M>> queuedMessages = lastAsyncWait
+                    // a failed wait must not prevent the messages of the following waits from being forwarded
+                    .handle((previousMessages, failure) -> null)
+                    .thenCombine(messages, (ignored, collectedMessages) -> {
+                        collectedMessages.forEach(message -> messageSender.addToQueue(message));
+                        return collectedMessages;
+                    });
+            lastAsyncWait = queuedMessages;
+            return queuedMessages;
+        }
+    }
+
+    protected abstract CompletableFuture<List<M>> getMessagesByWaitingForAsync(WaitingInput<M> input);
+
     /**
      * Creates a mock of the given class that forwards calls into this test call manager for recording/replaying.
      * For this to work in recording, a real instance of the given class must be registered with the {@link RecordingTestCallManager#registerRealInstance(Object)} method.
      * In replaying, this is not necessary since it will get its result directly from the recorded data.
+     * Interfaces are mocked by a (cached) {@link Proxy} class, other classes by Mockito.
      */
     public final <Q> Q createRRMock(Class<Q> clazz) {
-        return Mockito.mock(clazz, (Answer) invocation -> {
-            if (invocation.getMethod().getName().equals("hashCode") || invocation.getMethod().getName().equals("equals")) {
-                throw new RuntimeException("Cannot call: " + invocation.getMethod().getName() + " on mock.");
-            } else if (invocation.getMethod().getName().equals("toString")) {
-                return clazz.getName() + " mock";
+        if (clazz.isInterface()) {
+            try {
+                //noinspection unchecked
+                return (Q) PROXY_CONSTRUCTORS.get(clazz).newInstance((InvocationHandler) (proxy, method, args) -> callOnMock(clazz, method,
+                        args != null ? args : NO_ARGS));
+            }
+            catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Cannot create mock of: " + clazz, e);
             }
-            return call(clazz, invocation.getMethod(), invocation.getArguments(), invocation.getMethod().getReturnType());
-        });
+        }
+        return Mockito.mock(clazz, (Answer) invocation -> callOnMock(clazz, invocation.getMethod(), invocation.getArguments()));
+    }
+
+    /**
+     * Handles a call of a method on a mock created by {@link #createRRMock(Class)}.
+     */
+    private Object callOnMock(Class<?> clazz, Method method, Object[] args) throws Throwable {
+        MethodDescriptor methodDescriptor = getMethodDescriptor(method);
+        switch (methodDescriptor.kind) {
+            case HASH_CODE:
+            case EQUALS:
+                throw new RuntimeException("Cannot call: " + methodDescriptor.name + " on mock.");
+            case TO_STRING:
+                return clazz.getName() + " mock";
+            default:
+                return call(clazz, method, args, methodDescriptor.returnType);
+        }
     }
 
     /**
@@ -251,30 +480,109 @@ public abstract class TestCallManager<M extends Message> {
             throw new IllegalStateException("Cannot exclude non-void methods.");
         }
         excludedMethods.add(method);
+        methodDescriptors.remove(method);
     }
 
     /**
      * @return whether the given method should be excluded by the normal RR logic.
      */
     protected boolean isExcludedMethod(Method method) {
-        return excludedMethods.contains(method);
+        return getMethodDescriptor(method).excluded;
     }
 
     /**
-     * Allows the manager to do some validation when a run is complete.
+     * Allows the manager to do some validation when a run is complete. The messages of the waits started by {@link #waitForAsync(WaitingInput)} are waited for first.
      */
     public void validateAfterTest() {
+        // the messages of waits still in progress must be in their records before the recording is finished - a failed wait is reported by its own future
+        CompletableFuture<?> asyncWaits;
+        synchronized (asyncWaitLock) {
+            asyncWaits = lastAsyncWait;
+        }
+        asyncWaits.handle((messages, failure) -> null).join();
         // non-wildcard calls are not allowed to be left after the test. Wildcard calls are by their nature allowed, since they represent a "possible" call
-        List<ExpectedCall<?>> callThatShouldHaveBeenMade = expectedCalls
-                .stream()
-                .filter(expectedCall -> !(expectedCall instanceof WildcardCall))
+        List<String> callThatShouldHaveBeenMade = Stream.concat(Stream.of(mainCallStream), callStreams.values().stream())
+                .flatMap(callStream -> StreamSupport
+                        // in the order they were expected, bottom of the stack first
+                        .stream(Spliterators.spliteratorUnknownSize(callStream.expectedCalls.descendingIterator(), Spliterator.ORDERED), false)
+                        .filter(expectedCall -> !(expectedCall instanceof WildcardCall))
+                        .map(expectedCall -> callStream.key != null ? expectedCall.methodName + " (in call stream " + callStream.key + ")" : expectedCall.methodName))
                 .collect(Collectors.toList());
         if (callThatShouldHaveBeenMade.size() > 0) {
-            throw new IllegalStateException("Some expected calls were not made: "
-                    + callThatShouldHaveBeenMade
-                    .stream()
-                    .map(expectedCall -> expectedCall.methodName)
-                    .collect(Collectors.joining(", ")));
+            throw new IllegalStateException("Some expected calls were not made: " + String.join(", ", callThatShouldHaveBeenMade));
+        }
+    }
+
+    /**
+     * The calls expected and made by a single thread (or the threads bound to the same key), see {@link #concurrent}. Guarded by itself.
+     */
+    private static final class CallStream {
+
+        /**
+         * The key of the stream, null for the main call stream.
+         */
+        private final @Nullable String key;
+
+        /**
+         * A stack of the currently expected calls, the next expected call on top.
+         */
+        private final Deque<ExpectedCall<?>> expectedCalls;
+
+        private @Nullable ExpectedCall<?> currentCall;
+        private @Nullable ExpectedCall<?> previousCall;
+
+        /**
+         * The number of times in succession the previous call has been made.
+         */
+        private int previousCallRepetitions = 0;
+
+        private CallStream(@Nullable String key, Deque<ExpectedCall<?>> expectedCalls) {
+            this.key = key;
+            this.expectedCalls = expectedCalls;
+        }
+    }
+
+    /**
+     * What is needed to dispatch calls to a method.
+     */
+    private static final class MethodDescriptor {
+
+        private final MethodKind kind;
+        private final boolean excluded;
+        private final String name;
+        private final Class<?> returnType;
+
+        /**
+         * The start of the request of the record of a call with arguments.
+         */
+        private final String recordKeyPrefix;
+
+        private MethodDescriptor(Method method, boolean excluded) {
+            this.name = method.getName();
+            this.kind = MethodKind.of(name);
+            this.excluded = excluded;
+            this.returnType = method.getReturnType();
+            this.recordKeyPrefix = name + ": ";
+        }
+    }
+
+    /**
+     * The methods of a mock that are not forwarded to the manager.
+     */
+    private enum MethodKind {
+        HASH_CODE, EQUALS, TO_STRING, CALL;
+
+        private static MethodKind of(String methodName) {
+            switch (methodName) {
+                case "hashCode":
+                    return HASH_CODE;
+                case "equals":
+                    return EQUALS;
+                case "toString":
+                    return TO_STRING;
+                default:
+                    return CALL;
+            }
         }
     }
 }
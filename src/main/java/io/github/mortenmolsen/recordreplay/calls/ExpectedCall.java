@@ -64,7 +64,7 @@ public class ExpectedCall<T> {
 
 
     public T replay(Record<?> record, TestDataHandler testDataHandler) {
-        return testDataHandler.convertValue(record.getResponse(), expectedResponseClass);
+        return record.bindResponse(expectedResponseClass, testDataHandler);
     }
 
     /**
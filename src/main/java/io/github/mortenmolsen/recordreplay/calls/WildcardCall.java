@@ -4,13 +4,31 @@ import io.github.mortenmolsen.recordreplay.TestCallManager;
 
 /**
  * This call is handled in a special way in the {@link TestCallManager} allowing multiple of these calls to occur in succession (or none at all). It is used for when a call must
- * poll some information an unknown number of times.
+ * poll some information an unknown number of times - or at most {@link #maxRepetitions} times.
  *
  * @author Morten Meiling Olsen
  */
 public class WildcardCall<T> extends ExpectedCall<T> {
 
+    /**
+     * The maximum number of times the call may be made in succession.
+     */
+    public final int maxRepetitions;
+
     public WildcardCall(String methodName, Class<T> expectedResponseClass) {
+        this(methodName, expectedResponseClass, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A call that may be made between 0 and the given number of times in succession.
+     *
+     * @param maxRepetitions at least 1, a call that may not be made at all should not be expected.
+     */
+    public WildcardCall(String methodName, Class<T> expectedResponseClass, int maxRepetitions) {
         super(methodName, expectedResponseClass);
+        if (maxRepetitions < 1) {
+            throw new IllegalArgumentException("A wildcard call must be allowed at least once, max repetitions: " + maxRepetitions);
+        }
+        this.maxRepetitions = maxRepetitions;
     }
 }
@@ -0,0 +1,175 @@
+package io.github.mortenmolsen.recordreplay.conversion;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import io.github.mortenmolsen.recordreplay.RecordReplayConfigurer;
+import io.github.mortenmolsen.recordreplay.testdata.RecordIterator;
+import io.github.mortenmolsen.recordreplay.testdata.TestData;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataFiles;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForReplaying;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataHandler;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataPack;
+import lombok.Getter;
+
+/**
+ * Converts all the recordings of a test data directory with an {@link OldFormatConverter}, without running any tests. The recordings are converted in parallel, each by
+ * a converter of its own, and each file is rewritten atomically (see {@link OldFormatConverter#record(String)}), so a failing recording is left as it was.
+ * <p>
+ * Usage: {@code FormatMigration <configurer class> <converter class>}. The configurer class must have a no-argument constructor, and the converter class a constructor
+ * taking the {@link TestData}. Or from code:
+ * <pre>
+ * new FormatMigration(Paths.get("src/test/resources/..."), testDataHandler, MyRecord.class, MyConverter::new).run();
+ * </pre>
+ * Recordings in a {@link TestDataPack} are not converted - convert the loose files before packing them.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class FormatMigration {
+
+    private final Path pathToTestData;
+    private final TestDataHandler testDataHandler;
+    private final Class<?> recordClass;
+    private final Function<TestData, OldFormatConverter> converterFactory;
+
+    /**
+     * @param recordClass the class of the records, which is given to the converter and which every converted record must be convertible to.
+     * @param converterFactory creates the converter of a single recording.
+     */
+    public FormatMigration(Path pathToTestData, TestDataHandler testDataHandler, Class<?> recordClass, Function<TestData, OldFormatConverter> converterFactory) {
+        this.pathToTestData = pathToTestData;
+        this.testDataHandler = testDataHandler;
+        this.recordClass = recordClass;
+        this.converterFactory = converterFactory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: " + FormatMigration.class.getName() + " <configurer class> <converter class>");
+            System.exit(1);
+        }
+        RecordReplayConfigurer<?> configurer = (RecordReplayConfigurer<?>) Class.forName(args[0]).newInstance();
+        Constructor<? extends OldFormatConverter> converterConstructor = Class.forName(args[1]).asSubclass(OldFormatConverter.class).getConstructor(TestData.class);
+        List<Result> results = new FormatMigration(Paths.get(configurer.getPathToData()), configurer.createTestDataHandler(), configurer.getRecordClass(), testData -> {
+            try {
+                return converterConstructor.newInstance(testData);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Error creating converter: " + converterConstructor.getDeclaringClass().getName(), e);
+            }
+        }).run();
+        if (results.stream().anyMatch(result -> result.getFailure() != null)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts the recordings using all available processors.
+     */
+    public List<Result> run() throws IOException, InterruptedException {
+        return run(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Converts the recordings, printing the time spent on each of them and the failures.
+     *
+     * @return the result of converting each recording.
+     */
+    public List<Result> run(int parallelism) throws IOException, InterruptedException {
+        List<Path> recordings;
+        try (Stream<Path> files = Files.list(pathToTestData)) {
+            recordings = files.filter(this::isRecording).sorted().collect(Collectors.toList());
+        }
+        if (Files.exists(pathToTestData.resolve(TestDataPack.FILE_NAME))) {
+            System.out.println("Recordings in " + TestDataPack.FILE_NAME + " are not converted.");
+        }
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        List<Result> results;
+        try {
+            results = pool.submit(() -> recordings.parallelStream().map(this::convert).collect(Collectors.toList())).get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Error converting recordings.", e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+        for (Result result : results) {
+            System.out.println(result);
+        }
+        long failures = results.stream().filter(result -> result.getFailure() != null).count();
+        System.out.println("Converted " + (results.size() - failures) + " of " + results.size() + " recordings in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + failures + " failed.");
+        return results;
+    }
+
+    private boolean isRecording(Path path) {
+        String fileName = path.getFileName().toString();
+        return Files.isRegularFile(path)
+                && (fileName.endsWith(testDataHandler.getExtension()) || fileName.endsWith(testDataHandler.getExtension() + TestDataFiles.COMPRESSED_EXTENSION));
+    }
+
+    private Result convert(Path pathToFile) {
+        long start = System.nanoTime();
+        int numberOfRecords = 0;
+        try {
+            TestData testData = new TestDataForReplaying(pathToTestData.toString());
+            testData.setTestDataHandler(testDataHandler);
+            OldFormatConverter converter = converterFactory.apply(testData);
+            try (RecordIterator records = TestDataFiles.readRecords(TestDataFiles.openForReading(pathToFile), testDataHandler)) {
+                while (records.hasNext()) {
+                    // the converted record must still be a valid record, otherwise the recording could not be replayed
+                    testDataHandler.convertValue(converter.convert(records.next(), recordClass), recordClass);
+                    numberOfRecords++;
+                }
+            }
+            converter.record(pathToFile.getFileName().toString());
+            return new Result(pathToFile, numberOfRecords, System.nanoTime() - start, null);
+        }
+        catch (IOException | RuntimeException e) {
+            return new Result(pathToFile, numberOfRecords, System.nanoTime() - start, e);
+        }
+    }
+
+    /**
+     * The result of converting a single recording.
+     */
+    @Getter
+    public static class Result {
+
+        private final Path pathToFile;
+
+        /**
+         * The number of records converted (before failing, if the conversion failed).
+         */
+        private final int numberOfRecords;
+        private final long nanos;
+        private final @Nullable Exception failure;
+
+        private Result(Path pathToFile, int numberOfRecords, long nanos, @Nullable Exception failure) {
+            this.pathToFile = pathToFile;
+            this.numberOfRecords = numberOfRecords;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+
+        @Override
+        public String toString() {
+            return pathToFile.getFileName() + ": " + numberOfRecords + " records, " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms"
+                    + (failure != null ? ", FAILED: " + failure : "");
+        }
+    }
+}
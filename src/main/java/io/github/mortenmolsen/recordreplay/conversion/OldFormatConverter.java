@@ -1,14 +1,19 @@
 package io.github.mortenmolsen.recordreplay.conversion;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.LinkedList;
 
 import io.github.mortenmolsen.recordreplay.ReplayingTestCallManager;
+import io.github.mortenmolsen.recordreplay.testdata.RecordWriter;
 import io.github.mortenmolsen.recordreplay.testdata.TestData;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataFiles;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataHandler;
 
 /**
  * This class is used to do conversions of the recorded data files. It is simply too cumbersome to manually edit them, and re-recording all tests is also very annoying
@@ -42,16 +47,35 @@ public abstract class OldFormatConverter {
      */
     protected abstract Object doConvert(Object old, Class expectedClassOfObject);
 
+    /**
+     * Writes the converted records to the given file (in the test data directory), replacing the existing file. The records are written to a temporary file that is
+     * then moved in place, so the existing file is left as it was if writing fails.
+     */
     public void record(String fileName) {
         try {
             Path pathToFile = Paths.get(testData.getPathToTestData(), fileName);
-            if (Files.exists(pathToFile)) {
-                Files.delete(pathToFile);
+            Path temporaryFile = Files.createTempFile(pathToFile.toAbsolutePath().getParent(), fileName, ".tmp");
+            try {
+                TestDataHandler testDataHandler = testData.getTestDataHandler();
+                // the file is written compressed if it is named as a compressed file. The stream is closed by the record writer, or here if the writer is never opened
+                try (OutputStream outputStream = TestDataFiles.openForWriting(temporaryFile, TestDataFiles.isCompressed(pathToFile))) {
+                    testDataHandler.writeHeader(outputStream);
+                    try (RecordWriter recordWriter = testDataHandler.writeRecords(outputStream)) {
+                        for (Object convertedRecord : convertedRecords) {
+                            recordWriter.write(convertedRecord);
+                        }
+                    }
+                }
+                try {
+                    Files.move(temporaryFile, pathToFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile, pathToFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally {
+                Files.deleteIfExists(temporaryFile);
             }
-
-            // first write NUL char to make git recognise file as binary
-            Files.write(pathToFile, new byte[]{0});
-            Files.write(pathToFile, testData.getTestDataHandler().serialize(convertedRecords), StandardOpenOption.APPEND);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
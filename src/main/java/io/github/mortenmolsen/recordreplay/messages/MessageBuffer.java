@@ -0,0 +1,100 @@
+package io.github.mortenmolsen.recordreplay.messages;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An append-only list of messages, written by a single thread at a time and read by any thread. The messages are stored in chunks of a fixed size that are never moved,
+ * so appending a message never copies the messages already appended, and a {@link #snapshot()} is taken without copying anything.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class MessageBuffer<T> extends AbstractList<T> implements RandomAccess {
+
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * The chunks of the buffer. Only the directory is copied when it is full, not the chunks.
+     */
+    private volatile Object[][] chunks = new Object[4][];
+
+    /**
+     * The number of messages appended. It is written after the message itself, which publishes the message to readers.
+     */
+    private volatile int size = 0;
+
+    /**
+     * Appends the given message. Must not be called by more than one thread at a time.
+     */
+    @Override
+    public boolean add(T message) {
+        int index = size;
+        Object[][] currentChunks = chunks;
+        int chunkIndex = index / CHUNK_SIZE;
+        if (chunkIndex == currentChunks.length) {
+            currentChunks = Arrays.copyOf(currentChunks, currentChunks.length * 2);
+        }
+        if (currentChunks[chunkIndex] == null) {
+            currentChunks[chunkIndex] = new Object[CHUNK_SIZE];
+        }
+        currentChunks[chunkIndex][index % CHUNK_SIZE] = message;
+        chunks = currentChunks;
+        size = index + 1;
+        return true;
+    }
+
+    @Override
+    public T get(int index) {
+        int currentSize = size;
+        if (index < 0 || index >= currentSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + currentSize);
+        }
+        return get(chunks, index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T get(Object[][] chunks, int index) {
+        return (T) chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return an unmodifiable list of the messages appended so far, which is not affected by later appends.
+     */
+    public List<T> snapshot() {
+        // the size must be read before the chunks, so the chunks are at least as recent as the size
+        int snapshotSize = size;
+        Object[][] snapshotChunks = chunks;
+        return new Snapshot<>(snapshotChunks, snapshotSize);
+    }
+
+    private static final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+
+        private final Object[][] chunks;
+        private final int size;
+
+        private Snapshot(Object[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return MessageBuffer.get(chunks, index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
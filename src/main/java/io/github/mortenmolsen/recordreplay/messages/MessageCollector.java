@@ -1,11 +1,22 @@
 package io.github.mortenmolsen.recordreplay.messages;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
 import lombok.SneakyThrows;
 import lombok.Synchronized;
 import org.junit.Assert;
@@ -14,95 +25,369 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * Responsible for collecting messages. Will only actually collect messages if a {@link MessageCollector.Acceptor} is set in which case the messages
- * will be collected into that.
+ * will be collected into that. Several acceptors can collect messages at the same time, in which case a message is given to the first acceptor accepting it, in the
+ * order of their priority (see {@link Acceptor#setPriority(int)}), and then the order they were started in.
  * It is possible to set a "non-expected" acceptor on the collector, which will determine how messages arriving when no actual acceptor is set are treated.
+ * Acceptors that wait for messages to stop coming in are woken by deadlines on a timer shared by all collectors (see {@link Acceptor#armDeadline(long)}).
+ * <p>
+ * Received messages are linked into a lock-free queue, stamped with their arrival time, and handed to the acceptors by a single dispatcher thread, in the order they
+ * were linked. The dispatcher numbers the messages in that same order. So the threads receiving messages never wait for each other or for the acceptors. An acceptor
+ * only gets the messages linked after it was started. Messages received after the collector is stopped are dropped.
  *
  * @author Morten Meiling Olsen
  */
 public final class MessageCollector<T extends Message> implements SmartLifecycle {
 
-    private static final ThreadFactory THREAD_FACTORY = new CustomizableThreadFactory("Message-Collector-Heartbeat-Thread-");
+    /**
+     * The timer of the deadlines of all acceptors, see {@link Acceptor#armDeadline(long)}.
+     */
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private static final CustomizableThreadFactory DISPATCHER_THREAD_FACTORY = createDispatcherThreadFactory();
 
-    private Acceptor<T> acceptor;
+    /**
+     * The time waited for messages to be dispatched before checking whether the dispatcher is still alive, see {@link #awaitDispatched(ReceivedMessage)}.
+     */
+    private static final long AWAIT_DISPATCHED_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The acceptors currently collecting messages, in the order they are offered messages.
+     */
+    private final List<Acceptor<T>> acceptors = new ArrayList<>();
+    private long acceptorsStarted = 0;
     private Acceptor<T> nonExpectedAcceptor;
 
     private volatile String errorMessage;
     private final Object mutex = new Object();
     private volatile boolean running = false;
-    private ScheduledExecutorService executorService;
+
+    /**
+     * The queue of received messages, see {@link #messageReceived(Message)}: the most recently received message, which each new message is linked after, and the most
+     * recently dispatched message (which is only used by the dispatcher). They start out as the same empty message.
+     */
+    private final AtomicReference<ReceivedMessage<T>> lastReceived;
+    private ReceivedMessage<T> lastDispatched;
+
+    private final AtomicLong receivedMessageCount = new AtomicLong();
+    private volatile long dispatchedSequence = 0;
+    private volatile @Nullable Thread dispatcher;
+    private volatile boolean stopped = false;
+
+    /**
+     * Signalled when messages have been dispatched while someone is waiting for it, see {@link #awaitDispatched(ReceivedMessage)}.
+     */
+    private final Lock dispatchedLock = new ReentrantLock();
+    private final Condition messagesDispatched = dispatchedLock.newCondition();
+    private final AtomicInteger awaitingDispatch = new AtomicInteger();
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile long dispatchedMessages = 0;
+    private volatile long totalDispatchLatencyNanos = 0;
+    private volatile long maxDispatchLatencyNanos = 0;
+
+    public MessageCollector() {
+        ReceivedMessage<T> empty = new ReceivedMessage<>(0, null);
+        empty.sequence = 0;
+        lastReceived = new AtomicReference<>(empty);
+        lastDispatched = empty;
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("Message-Collector-Timer-Thread-");
+        threadFactory.setDaemon(true);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        // deadlines are cancelled (and re-armed) for every message accepted, so they must not pile up in the queue
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static CustomizableThreadFactory createDispatcherThreadFactory() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("Message-Collector-Dispatcher-Thread-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
 
     @Synchronized("mutex")
     public final void startAccepting(Acceptor<T> acceptor) {
-        if (this.acceptor != null) {
+        if (acceptors.contains(acceptor)) {
             Assert.fail("Already in the process of collecting messages.");
         }
-        this.acceptor = acceptor;
+        int index = 0;
+        while (index < acceptors.size() && acceptors.get(index).priority >= acceptor.priority) {
+            index++;
+        }
+        acceptors.add(index, acceptor);
+        acceptor.startOrder = ++acceptorsStarted;
+        // messages that have already arrived are not for this acceptor, even if they have not been dispatched yet
+        ReceivedMessage<T> startAfter = lastReceived.get();
+        if (startAfter.sequence != ReceivedMessage.NOT_DISPATCHED) {
+            acceptor.startSequence = startAfter.sequence;
+        }
+        else {
+            // the sequence is set by the dispatcher, when it gets to the message
+            acceptor.startSequence = Long.MAX_VALUE;
+            acceptor.startAfter = startAfter;
+        }
+        acceptor.started();
     }
 
+    /**
+     * Waits for and returns the messages collected by the most recently started acceptor, see {@link #getCollectedMessages(Acceptor)}.
+     */
     public final List<T> getCollectedMessages() {
+        Acceptor<T> acceptor;
+        synchronized (mutex) {
+            acceptor = acceptors.stream().max(Comparator.comparingLong(startedAcceptor -> startedAcceptor.startOrder)).orElse(null);
+        }
+        return getCollectedMessages(acceptor);
+    }
+
+    /**
+     * Waits for the given acceptor to collect its messages, and stops collecting messages into it.
+     *
+     * @return the collected messages, or an empty list if the acceptor is not collecting messages.
+     */
+    public final List<T> getCollectedMessages(@Nullable Acceptor<T> acceptor) {
         synchronized(mutex) {
             if (errorMessage != null) {
                 // an error must have occurred while we were busy elsewhere, just fail now
                 Assert.fail(errorMessage);
             }
-            if (acceptor == null) {
+            if (acceptor == null || !acceptors.contains(acceptor)) {
                 return Collections.emptyList();
             }
         }
         try {
-            List<T> collectedMessages = acceptor.getCollectedMessages();
-            if (errorMessage != null) {
-                // an error occurred while waiting...
-                Assert.fail(errorMessage);
+            List<T> collectedMessages;
+            try {
+                collectedMessages = acceptor.getCollectedMessages();
+            }
+            catch (AssertionError e) {
+                // the acceptor is released early when an error occurs, which is then the one to report
+                failOnError();
+                throw e;
             }
+            failOnError();
             return collectedMessages;
         }
         finally {
             synchronized (mutex) {
-                acceptor = null;
+                acceptors.remove(acceptor);
             }
         }
     }
 
-    @Synchronized("mutex")
-    public String getErrorMessage() {
-        return errorMessage;
-    }
-
     /**
-     * This method ensures that acceptors that waits for an unknown number of messages get a chance to release the collection semaphore if they have waited for the designated
-     * amount of time (and are satisfied with the received messages).
-     * <p>
-     * This is necessary because otherwise the acceptors only have a chance of reacting when messages are actually received.
+     * Fails if an error occurred while collecting messages. Messages that arrived while waiting must have been dispatched first, so that any unexpected one is reported.
      */
-    @Synchronized("mutex")
-    private void heartbeat() {
-        if (acceptor != null && !acceptor.completed) {
-            acceptor.releaseSemaphoreIfDone();
+    private void failOnError() {
+        awaitDispatched(lastReceived.get());
+        String currentErrorMessage = getErrorMessage();
+        if (currentErrorMessage != null) {
+            Assert.fail(currentErrorMessage);
         }
     }
 
+    @Synchronized("mutex")
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
     @Synchronized("mutex")
     public void setNonExpectedAcceptor(Acceptor<T> nonExpectedAcceptor) {
         this.nonExpectedAcceptor = nonExpectedAcceptor;
     }
 
     /**
-     * This method must be invoked when messages are received.
+     * This method must be invoked when messages are received. The message is only queued here, it is handed to the acceptors by the dispatcher thread.
      * NOTE: this method will most likely be called by another thread than the main one.
      */
-    @Synchronized("mutex")
     public final void messageReceived(T message) {
-        if (acceptor == null || !acceptor.accept(message)) {
-            // no current acceptor, or message not expected by acceptor
-            if (nonExpectedAcceptor == null || !nonExpectedAcceptor.accept(message)) {
-                errorMessage = "Received unacceptable unexpected message: " + message;
-                // IF there actually is an acceptor - release the semaphore - we should fail now...
-                if (acceptor != null) {
-                    acceptor.forceRelease();
+        if (stopped) {
+            System.out.println("Collector stopped, dropping message: " + message);
+            return;
+        }
+        Thread currentDispatcher = dispatcher != null ? dispatcher : startDispatcher();
+        if (currentDispatcher == null) {
+            System.out.println("Collector stopped, dropping message: " + message);
+            return;
+        }
+        ReceivedMessage<T> receivedMessage = new ReceivedMessage<>(System.nanoTime(), message);
+        // the message is linked after the previously received one, which gives the order in which the messages are dispatched
+        lastReceived.getAndSet(receivedMessage).next = receivedMessage;
+        maxQueueDepth.accumulateAndGet((int) (receivedMessageCount.incrementAndGet() - dispatchedSequence), Math::max);
+        LockSupport.unpark(currentDispatcher);
+    }
+
+    /**
+     * @return the dispatcher, or null if the collector has been stopped.
+     */
+    private synchronized @Nullable Thread startDispatcher() {
+        if (dispatcher == null && !stopped) {
+            Thread newDispatcher = DISPATCHER_THREAD_FACTORY.newThread(this::dispatch);
+            dispatcher = newDispatcher;
+            newDispatcher.start();
+        }
+        return dispatcher;
+    }
+
+    /**
+     * The loop of the dispatcher thread, which hands the received messages to the acceptors in the order they were linked, until the collector is stopped (and all
+     * messages received until then are dispatched).
+     */
+    private void dispatch() {
+        while (true) {
+            ReceivedMessage<T> receivedMessage = lastDispatched.next;
+            if (receivedMessage == null) {
+                if (stopped && lastReceived.get() == lastDispatched) {
+                    return;
+                }
+                // woken by the next message received, or when stopped - a wakeup that comes before parking makes the park return at once
+                LockSupport.park(this);
+                continue;
+            }
+            long sequence = lastDispatched.sequence + 1;
+            @Nullable Acceptor<T> acceptedBy = null;
+            boolean accepting = false;
+            try {
+                synchronized (mutex) {
+                    accepting = !acceptors.isEmpty();
+                    acceptedBy = dispatchMessage(receivedMessage, sequence);
+                }
+            }
+            catch (RuntimeException | AssertionError e) {
+                synchronized (mutex) {
+                    error("Error dispatching message: " + receivedMessage.message + " (" + e + ")");
+                }
+            }
+            // printed outside of the lock, so the printing does not hold back the test
+            if (acceptedBy != null) {
+                System.out.println("Accepted: " + receivedMessage.message);
+            }
+            else if (accepting) {
+                System.out.println("Acceptor rejected message: " + receivedMessage.message);
+            }
+            // only the dispatcher writes these
+            long latency = System.nanoTime() - receivedMessage.receivedAt;
+            dispatchedMessages++;
+            totalDispatchLatencyNanos += latency;
+            if (latency > maxDispatchLatencyNanos) {
+                maxDispatchLatencyNanos = latency;
+            }
+            // the previous message is no longer needed, unlink it so it can be collected
+            lastDispatched.next = null;
+            lastDispatched = receivedMessage;
+            dispatchedSequence = sequence;
+            if (awaitingDispatch.get() > 0) {
+                dispatchedLock.lock();
+                try {
+                    messagesDispatched.signalAll();
                 }
+                finally {
+                    dispatchedLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the message to the first acceptor started before it that accepts it, or else to the non-expected acceptor. Must be called holding the mutex.
+     *
+     * @return the acceptor accepting the message, if any (the non-expected acceptor not counted).
+     */
+    private @Nullable Acceptor<T> dispatchMessage(ReceivedMessage<T> receivedMessage, long sequence) {
+        receivedMessage.sequence = sequence;
+        T message = receivedMessage.message;
+        for (Acceptor<T> acceptor : acceptors) {
+            if (acceptor.startAfter == receivedMessage) {
+                // the acceptor was started after this message was received, but before it was dispatched
+                acceptor.startSequence = sequence;
+                acceptor.startAfter = null;
             }
         }
+        for (Acceptor<T> acceptor : acceptors) {
+            if (sequence > acceptor.startSequence && acceptor.accept(message)) {
+                return acceptor;
+            }
+        }
+        // no current acceptor, or message not expected by any acceptor
+        if (nonExpectedAcceptor == null || !nonExpectedAcceptor.accept(message)) {
+            error("Received unacceptable unexpected message: " + message);
+            // IF there actually are acceptors - release their semaphores - we should fail now...
+            acceptors.forEach(Acceptor::forceRelease);
+        }
+        return null;
+    }
+
+    /**
+     * Records an error, which fails the test (see {@link #getCollectedMessages(Acceptor)}). Only the first error is kept, since later errors are most likely caused by it -
+     * like expected messages arriving after their acceptor was released because of the error. Must be called holding the mutex.
+     */
+    private void error(String message) {
+        if (errorMessage == null) {
+            errorMessage = message;
+        }
+    }
+
+    /**
+     * Waits until the given message, and so all messages received before it, has been dispatched (or the dispatcher is stopped).
+     */
+    @SneakyThrows(InterruptedException.class)
+    private void awaitDispatched(ReceivedMessage<T> receivedMessage) {
+        awaitingDispatch.incrementAndGet();
+        dispatchedLock.lock();
+        try {
+            Thread currentDispatcher;
+            while (!isDispatched(receivedMessage) && (currentDispatcher = dispatcher) != null && currentDispatcher.isAlive()) {
+                // the timeout is only a safeguard against the dispatcher dying without signalling
+                messagesDispatched.await(AWAIT_DISPATCHED_NANOS, TimeUnit.NANOSECONDS);
+            }
+        }
+        finally {
+            dispatchedLock.unlock();
+            awaitingDispatch.decrementAndGet();
+        }
+    }
+
+    private boolean isDispatched(ReceivedMessage<T> receivedMessage) {
+        long sequence = receivedMessage.sequence;
+        return sequence != ReceivedMessage.NOT_DISPATCHED && dispatchedSequence >= sequence;
+    }
+
+    /**
+     * @return the number of messages received that have not yet been handed to the acceptors.
+     */
+    public int getQueueDepth() {
+        return (int) (receivedMessageCount.get() - dispatchedSequence);
+    }
+
+    /**
+     * @return the highest number of messages seen waiting to be handed to the acceptors.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return the number of messages handed to the acceptors.
+     */
+    public long getDispatchedMessages() {
+        return dispatchedMessages;
+    }
+
+    /**
+     * @return the average time, in milliseconds, from a message being received until it has been handed to the acceptors.
+     */
+    public double getAverageDispatchLatencyMillis() {
+        long messages = dispatchedMessages;
+        return messages == 0 ? 0 : (double) totalDispatchLatencyNanos / messages / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the longest time, in milliseconds, from a message being received until it had been handed to the acceptors.
+     */
+    public double getMaxDispatchLatencyMillis() {
+        return (double) maxDispatchLatencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
     }
 
     @Override
@@ -132,23 +417,61 @@ public final class MessageCollector<T extends Message> implements SmartLifecycle
 
     @Override
     public void start() {
-        executorService = Executors.newScheduledThreadPool(1, THREAD_FACTORY);
-        executorService.scheduleAtFixedRate(() -> heartbeat(), 0, 2000, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            stopped = false;
+        }
+        startDispatcher();
         running = true;
     }
 
     @Override
     public void stop() {
-        if (executorService != null) {
-            executorService.shutdown();
+        Thread stoppedDispatcher;
+        synchronized (this) {
+            stopped = true;
+            stoppedDispatcher = dispatcher;
+        }
+        if (stoppedDispatcher != null) {
+            // the dispatcher hands over the messages already received before it stops
+            LockSupport.unpark(stoppedDispatcher);
             try {
-                if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                    executorService.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                executorService.shutdownNow();
+                stoppedDispatcher.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (dispatcher == stoppedDispatcher) {
+                dispatcher = null;
             }
         }
+        synchronized (mutex) {
+            acceptors.forEach(Acceptor::cancelDeadline);
+        }
+        running = false;
+    }
+
+    /**
+     * A received message, linked to the message received after it until it has been dispatched.
+     */
+    private static final class ReceivedMessage<T> {
+
+        private static final long NOT_DISPATCHED = -1;
+
+        private final long receivedAt;
+        private final T message;
+        private volatile @Nullable ReceivedMessage<T> next;
+
+        /**
+         * The sequence of the message, given by the dispatcher in the order the messages are dispatched.
+         */
+        private volatile long sequence = NOT_DISPATCHED;
+
+        private ReceivedMessage(long receivedAt, T message) {
+            this.receivedAt = receivedAt;
+            this.message = message;
+        }
     }
 
     /**
@@ -163,7 +486,35 @@ public final class MessageCollector<T extends Message> implements SmartLifecycle
 
         private volatile boolean completed = false;
 
-        protected final List<T> acceptedMessages = new CopyOnWriteArrayList<>();
+        /**
+         * The sequence of the last message received before the acceptor was started, see {@link MessageCollector#startAccepting(Acceptor)}.
+         */
+        private long startSequence;
+
+        /**
+         * The message received last before the acceptor was started, if it had not been dispatched yet, see {@link MessageCollector#startAccepting(Acceptor)}.
+         */
+        private @Nullable ReceivedMessage<T> startAfter;
+
+        /**
+         * The number of acceptors started by the collector when this one was started.
+         */
+        private long startOrder;
+
+        /**
+         * Acceptors with a higher priority are offered messages before those with a lower priority, see {@link MessageCollector}.
+         */
+        private volatile int priority = 0;
+
+        /**
+         * The pending deadline of the acceptor, see {@link #armDeadline(long)}.
+         */
+        private @Nullable ScheduledFuture<?> deadline;
+
+        /**
+         * The messages accepted so far, which are only appended while holding the lock of the acceptor (see {@link #accept(Message)}).
+         */
+        protected final MessageBuffer<T> acceptedMessages = new MessageBuffer<>();
         private final Predicate<T> acceptPredicate;
 
         public Acceptor(int waitingTimeMs, Predicate<T> acceptPredicate) {
@@ -176,7 +527,7 @@ public final class MessageCollector<T extends Message> implements SmartLifecycle
          *
          * @return true if message is accepted (it is an expected message), false otherwise.
          */
-        public final boolean accept(T message) {
+        public final synchronized boolean accept(T message) {
             if (completed) {
                 return false;
             }
@@ -186,35 +537,83 @@ public final class MessageCollector<T extends Message> implements SmartLifecycle
                 return true;
             }
             else {
-                System.out.println("Acceptor rejected message: " + message);
                 return false;
             }
         }
 
         /**
-         * Method called each time a method is accepted. It is also called at a scheduled, fixed, rate to release the collection semaphore for acceptors that do not know the
-         * exact number of messages that they receive and therefore wait a while to determine that no more messages are coming in.
+         * Method called each time a method is accepted. It is also called when the deadline of the acceptor expires (see {@link #armDeadline(long)}) to release the
+         * collection semaphore for acceptors that do not know the exact number of messages that they receive and therefore wait a while to determine that no more messages
+         * are coming in.
          */
-        public void releaseSemaphoreIfDone() {
+        public synchronized void releaseSemaphoreIfDone() {
             if (checkMessages() != MessageIdentifier.MessageCheckResult.NOT_YET) {
-                completed = true;
-                collectionSemaphore.release();
+                complete();
             }
         }
 
         /**
          * Performs a release of the semaphore, no matter whether all messages have been received - this is for use when errors occurr.
          */
-        public void forceRelease() {
+        public synchronized void forceRelease() {
+            complete();
+        }
+
+        private void complete() {
             completed = true;
+            cancelDeadline();
             collectionSemaphore.release();
         }
 
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Sets the priority of the acceptor, which must be done before it is started.
+         */
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Called when the collector starts accepting messages into this acceptor.
+         */
+        protected void started() {
+        }
+
+        /**
+         * Arms the deadline of the acceptor, replacing any pending deadline: when the given time has passed, the acceptor gets a chance to release the collection semaphore
+         * (see {@link #releaseSemaphoreIfDone()}), even if no message is received in the meantime.
+         */
+        protected final synchronized void armDeadline(long delayMs) {
+            cancelDeadline();
+            if (!completed) {
+                deadline = TIMER.schedule(this::deadlineExpired, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void deadlineExpired() {
+            deadline = null;
+            if (!completed) {
+                releaseSemaphoreIfDone();
+            }
+        }
+
+        private synchronized void cancelDeadline() {
+            if (deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+        }
+
         @SneakyThrows(InterruptedException.class)
         public final List<T> getCollectedMessages() {
-            if (collectionSemaphore.tryAcquire(waitingTimeMs, TimeUnit.MILLISECONDS)) {
+            boolean acquired = collectionSemaphore.tryAcquire(waitingTimeMs, TimeUnit.MILLISECONDS);
+            cancelDeadline();
+            if (acquired) {
                 if (checkMessages() == MessageIdentifier.MessageCheckResult.OK) {
-                    return acceptedMessages;
+                    return acceptedMessages.snapshot();
                 }
                 else {
                     fail();
@@ -1,10 +1,10 @@
 package io.github.mortenmolsen.recordreplay.messages;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
  * Identifies a number of (a certain kind of) messages that come in. This is used to "expect" what messages that comes in as response to sending some request.
@@ -58,13 +58,25 @@ public abstract class MessageIdentifier<T extends Message> {
      * Determines if the given list of messages contains the expected number of message for this identifier.
      */
     public MessageCheckResult checkReceivedMessages(List<T> alreadyReceivedMessages) {
-        List<T> matching = alreadyReceivedMessages
-                .stream()
-                .filter(receivedMessage -> matches(receivedMessage))
-                .collect(Collectors.toList());
+        Tally tally = newTally();
+        for (T receivedMessage : alreadyReceivedMessages) {
+            tally.add(receivedMessage);
+        }
+        return tally.getResult();
+    }
 
-        long totalNumMatches = matching.size();
+    /**
+     * @return a new tally of received messages for this identifier, see {@link Tally}.
+     */
+    public Tally newTally() {
+        return new Tally();
+    }
 
+    /**
+     * @param totalNumMatches the number of messages matched by the identifier.
+     * @param numDistinct the number of distinct messages among those (only used in {@link Mode#DISTINCT} mode).
+     */
+    private MessageCheckResult check(long totalNumMatches, long numDistinct) {
         switch (mode) {
             case EXACT:
                 if (totalNumMatches < requiredMessages) {
@@ -84,10 +96,6 @@ public abstract class MessageIdentifier<T extends Message> {
                     return MessageCheckResult.NOT_YET;
                 }
             case DISTINCT:
-                long numDistinct = matching
-                        .stream()
-                        .filter(distinctMessages()).count();
-
                 if (numDistinct < requiredMessages) {
                     return MessageCheckResult.NOT_YET;
                 }
@@ -103,21 +111,54 @@ public abstract class MessageIdentifier<T extends Message> {
         }
     }
 
-    /**
-     * @return a predicate that identifies distinct messages. Their "distinctness" is determined by the function {@link #distinctIdentifier(Message)} which must
-     * be implemented by subclasses.
-     */
-    private Predicate<T> distinctMessages() {
-        Map<Object,Boolean> seen = new ConcurrentHashMap<>();
-        return t -> seen.putIfAbsent(distinctIdentifier(t), Boolean.TRUE) == null;
-    }
-
     /**
      * @return a string distinctly identifying the message (for instance in IB, we might get many "openOrder" messages and want to distinguish between openOrder messages
      * for distinct orders).
      */
     protected abstract String distinctIdentifier(T message);
 
+    /**
+     * Keeps count of the messages received for the identifier, one message at a time, so that the state of the received messages is known without going through them
+     * again (as {@link #checkReceivedMessages(List)} does). The distinctness of messages (see {@link Mode#DISTINCT}) is tracked by the set of their distinct identifiers.
+     */
+    public final class Tally {
+
+        private long totalNumMatches = 0;
+        private final Set<Object> distinctIdentifiers = mode == Mode.DISTINCT ? new HashSet<>() : Collections.emptySet();
+        private MessageCheckResult result = check(0, 0);
+
+        private Tally() {
+        }
+
+        /**
+         * Counts the given message, if it is matched by the identifier.
+         *
+         * @return true if the message is matched.
+         */
+        public boolean add(T message) {
+            if (!matches(message)) {
+                return false;
+            }
+            totalNumMatches++;
+            if (mode == Mode.DISTINCT) {
+                distinctIdentifiers.add(distinctIdentifier(message));
+            }
+            result = check(totalNumMatches, distinctIdentifiers.size());
+            return true;
+        }
+
+        /**
+         * @return the state of the messages counted so far, as given by {@link #checkReceivedMessages(List)} for the same messages.
+         */
+        public MessageCheckResult getResult() {
+            return result;
+        }
+
+        public MessageIdentifier<T> getMessageIdentifier() {
+            return MessageIdentifier.this;
+        }
+    }
+
     /**
      * The mode determines how many messages the identifier expects to receive.
      */
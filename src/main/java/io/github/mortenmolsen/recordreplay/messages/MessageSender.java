@@ -1,8 +1,9 @@
 package io.github.mortenmolsen.recordreplay.messages;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Predicate;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -18,7 +19,10 @@ import org.junit.Assert;
 @SuppressFBWarnings("UC_USELESS_OBJECT")
 public abstract class MessageSender<T extends Message> {
 
-    private final List<T> queuedMessages = new CopyOnWriteArrayList<>();
+    /**
+     * The queue of messages, guarded by its own lock.
+     */
+    private final Deque<T> queuedMessages = new ArrayDeque<>();
 
     private final ExpectedCallsFromMessages<T> expectedCallsFromMessages;
 
@@ -27,14 +31,20 @@ public abstract class MessageSender<T extends Message> {
     }
 
     public final void addToQueue(T message) {
-        queuedMessages.add(message);
+        synchronized (queuedMessages) {
+            queuedMessages.addLast(message);
+        }
     }
 
     /**
      * Asserts that the first message matches the given predicate, and sends and returns it, if it does (otherwise fails).
      */
     public final T assertAndSendFirstMessage(Predicate<T> matcher) {
-        Assert.assertTrue("Message did not match the predicate: " + queuedMessages.get(0).getMessageObject(), matcher.test(queuedMessages.get(0)));
+        T firstMessage;
+        synchronized (queuedMessages) {
+            firstMessage = queuedMessages.getFirst();
+        }
+        Assert.assertTrue("Message did not match the predicate: " + firstMessage.getMessageObject(), matcher.test(firstMessage));
         return sendFirstMessage();
     }
 
@@ -43,24 +53,34 @@ public abstract class MessageSender<T extends Message> {
      * NOTE: this does NOT send the message. The message can be send afterwards using {@link #sendMessage(Message)} or any of the other methods (it remains in the queue).
      */
     public final MessageInQueue getMessageForSending(Predicate<T> matcher) {
-        return new MessageInQueue(queuedMessages.stream().filter(message -> matcher.test(message)).findFirst().get());
+        synchronized (queuedMessages) {
+            return new MessageInQueue(queuedMessages.stream().filter(message -> matcher.test(message)).findFirst().get());
+        }
     }
 
     public final T sendFirstMessage() {
-        T toSend = queuedMessages.remove(0);
+        T toSend;
+        synchronized (queuedMessages) {
+            toSend = queuedMessages.removeFirst();
+        }
         sendMessage(toSend);
         return toSend;
     }
 
     public final void sendAllMessages() {
         // since each message might instigate a call that adds more messages we must clear the existing ones before sending
-        List<T> toSend = new ArrayList<>(queuedMessages);
-        queuedMessages.clear();
+        List<T> toSend;
+        synchronized (queuedMessages) {
+            toSend = new ArrayList<>(queuedMessages);
+            queuedMessages.clear();
+        }
         toSend.forEach(message -> sendMessage(message));
     }
 
     public final boolean isEmpty() {
-        return queuedMessages.isEmpty();
+        synchronized (queuedMessages) {
+            return queuedMessages.isEmpty();
+        }
     }
 
     /**
@@ -91,8 +111,11 @@ public abstract class MessageSender<T extends Message> {
         }
 
         public void send() {
-            if (queuedMessages.contains(message)) {
-                queuedMessages.remove(message);
+            boolean removed;
+            synchronized (queuedMessages) {
+                removed = queuedMessages.removeFirstOccurrence(message);
+            }
+            if (removed) {
                 sendMessage(message);
             }
             else {
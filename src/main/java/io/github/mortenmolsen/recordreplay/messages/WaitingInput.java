@@ -3,6 +3,7 @@ package io.github.mortenmolsen.recordreplay.messages;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -21,11 +22,28 @@ public final class WaitingInput<M extends Message> {
      */
     public static final Integer DEFAULT_WAIT_TIME_SECONDS = 10;
 
+    /**
+     * The default time without messages after which no more messages are expected, see {@link #quietPeriodMs}.
+     */
+    public static final int DEFAULT_QUIET_PERIOD_MS = 2000;
+
     /**
      * The time that can be used for waiting when recording.
      */
     public int waitingTime;
 
+    /**
+     * When an unknown number of messages is expected (see {@link #unknownNumberOfMessagesExpected()}), the time without any messages being received after which it is
+     * assumed that no more are coming in.
+     */
+    public int quietPeriodMs = DEFAULT_QUIET_PERIOD_MS;
+
+    /**
+     * The priority of the waiting, when waiting for several inputs at the same time: messages are offered to the waiting with the highest priority first (see
+     * {@link MessageCollector}).
+     */
+    public int priority = 0;
+
     /**
      * Whether the waiting that is to be done might fail, in a way that warrants a retry. Used to control which exception is thrown during recording to be able to retry from the
      * {@link TestCallManagerAwareTestRule}.
@@ -89,20 +107,28 @@ public final class WaitingInput<M extends Message> {
      * @return a {@link MessageIdentifier.MessageCheckResult} representing the state of the waiting.
      */
     public final MessageIdentifier.MessageCheckResult checkReceivedMessages(List<M> messages) {
-        boolean allOk = true;
-        for (MessageIdentifier<M> messageIdentifier : messageIdentifiers) {
-            MessageIdentifier.MessageCheckResult result = messageIdentifier.checkReceivedMessages(messages);
-            if (result == MessageIdentifier.MessageCheckResult.TOO_MANY) {
-                // the identifier has received too many messages - we must return as this is not an acceptable state (and the test must fail)
-                return result;
-            }
-            else if (result == MessageIdentifier.MessageCheckResult.NOT_YET) {
-                // this identifier has not yet received the messages it needs - so we cannot overall return OK. We need to keep checking the rest of the identifiers, though,
-                // since some might have received too many messages
-                allOk = false;
-            }
+        Tally<M> tally = newTally();
+        for (M message : messages) {
+            tally.add(message);
         }
-        return allOk ? MessageIdentifier.MessageCheckResult.OK : MessageIdentifier.MessageCheckResult.NOT_YET;
+        return tally.getResult();
+    }
+
+    /**
+     * @return a new tally of received messages for all the message identifiers, see {@link Tally}.
+     */
+    public Tally<M> newTally() {
+        return new Tally<>(this);
+    }
+
+    public WaitingInput<M> quietPeriod(int quietPeriodMs) {
+        this.quietPeriodMs = quietPeriodMs;
+        return this;
+    }
+
+    public WaitingInput<M> priority(int priority) {
+        this.priority = priority;
+        return this;
     }
 
     public WaitingInput<M> failShouldTriggerRetry() {
@@ -116,14 +142,24 @@ public final class WaitingInput<M extends Message> {
 
     private static class WaitingInputAcceptor<T extends Message> extends MessageCollector.Acceptor<T> {
 
-        private static int WAITING_THRESHOLD = 2000;
-
         private final WaitingInput<T> waitingInput;
-        private volatile long lastMessageAcceptedAt;
+        private final Tally<T> tally;
+        private final boolean unknownNumberOfMessagesExpected;
+        private final long quietPeriodNanos;
+
+        /**
+         * When the acceptor started accepting or last accepted a message. Until started, the acceptor is considered to have been quiet for the whole quiet period.
+         */
+        private volatile long lastActivityAt;
 
         public WaitingInputAcceptor(WaitingInput<T> waitingInput) {
             super(waitingInput.waitingTime * 1000, waitingInput.getAcceptPredicate());
             this.waitingInput = waitingInput;
+            this.tally = waitingInput.newTally();
+            setPriority(waitingInput.priority);
+            this.unknownNumberOfMessagesExpected = waitingInput.unknownNumberOfMessagesExpected();
+            this.quietPeriodNanos = TimeUnit.MILLISECONDS.toNanos(waitingInput.quietPeriodMs);
+            this.lastActivityAt = System.nanoTime() - quietPeriodNanos;
             System.out.println("Will wait for at most " + waitingInput.waitingTime + " seconds for each of the following messages: " +
                     waitingInput.messageIdentifiers
                             .stream()
@@ -131,11 +167,23 @@ public final class WaitingInput<M extends Message> {
                             .collect(Collectors.joining(",")));
         }
 
+        @Override
+        protected void started() {
+            if (unknownNumberOfMessagesExpected) {
+                // messages might still be on their way, so wait for a quiet period before releasing
+                lastActivityAt = System.nanoTime();
+                armDeadline(waitingInput.quietPeriodMs);
+            }
+        }
+
         @Override
         public boolean doAccept(T message) {
             if (super.doAccept(message)) {
-                System.out.println("Accepted: " + message);
-                lastMessageAcceptedAt = System.currentTimeMillis();
+                tally.add(message);
+                if (unknownNumberOfMessagesExpected) {
+                    lastActivityAt = System.nanoTime();
+                    armDeadline(waitingInput.quietPeriodMs);
+                }
                 return true;
             }
             else {
@@ -145,14 +193,14 @@ public final class WaitingInput<M extends Message> {
 
         @Override
         protected MessageIdentifier.MessageCheckResult checkMessages() {
-            MessageIdentifier.MessageCheckResult result = waitingInput.checkReceivedMessages(acceptedMessages);
+            MessageIdentifier.MessageCheckResult result = tally.getResult();
             if (result == MessageIdentifier.MessageCheckResult.TOO_MANY) {
                 return MessageIdentifier.MessageCheckResult.TOO_MANY;
             }
             //noinspection SimplifiableIfStatement
-            if (waitingInput.unknownNumberOfMessagesExpected()
+            if (unknownNumberOfMessagesExpected
                     && result == MessageIdentifier.MessageCheckResult.OK
-                    && System.currentTimeMillis() - lastMessageAcceptedAt < WAITING_THRESHOLD) {
+                    && System.nanoTime() - lastActivityAt < quietPeriodNanos) {
                 return MessageIdentifier.MessageCheckResult.NOT_YET;
             }
             else {
@@ -167,9 +215,8 @@ public final class WaitingInput<M extends Message> {
                     .map(message -> message.getInfo())
                     .collect(Collectors.toList()) +
 
-                    "\nDid NOT receive (or received too many): " + waitingInput.messageIdentifiers
+                    "\nDid NOT receive (or received too many): " + tally.getIdentifiersNotOk()
                     .stream()
-                    .filter(messageIdentifier -> messageIdentifier.checkReceivedMessages(acceptedMessages) != MessageIdentifier.MessageCheckResult.OK)
                     .map(identifier -> identifier.getInfo())
                     .collect(Collectors.toList());
         }
@@ -186,4 +233,69 @@ public final class WaitingInput<M extends Message> {
         }
     }
 
+    /**
+     * Keeps count of the messages received for each of the message identifiers, one message at a time, so that the state of the waiting is known without going through
+     * the received messages again (as {@link #checkReceivedMessages(List)} does). The number of identifiers in each state is kept as well, so each check is done in
+     * constant time.
+     */
+    public static final class Tally<M extends Message> {
+
+        private final List<MessageIdentifier<M>.Tally> identifierTallies = new ArrayList<>();
+        private int identifiersNotYet = 0;
+        private int identifiersTooMany = 0;
+
+        private Tally(WaitingInput<M> waitingInput) {
+            for (MessageIdentifier<M> messageIdentifier : waitingInput.messageIdentifiers) {
+                MessageIdentifier<M>.Tally identifierTally = messageIdentifier.newTally();
+                identifierTallies.add(identifierTally);
+                count(identifierTally.getResult(), 1);
+            }
+        }
+
+        /**
+         * Counts the given message for each of the identifiers matching it.
+         */
+        public synchronized void add(M message) {
+            for (MessageIdentifier<M>.Tally identifierTally : identifierTallies) {
+                MessageIdentifier.MessageCheckResult previousResult = identifierTally.getResult();
+                if (identifierTally.add(message) && identifierTally.getResult() != previousResult) {
+                    count(previousResult, -1);
+                    count(identifierTally.getResult(), 1);
+                }
+            }
+        }
+
+        private void count(MessageIdentifier.MessageCheckResult result, int delta) {
+            if (result == MessageIdentifier.MessageCheckResult.NOT_YET) {
+                identifiersNotYet += delta;
+            }
+            else if (result == MessageIdentifier.MessageCheckResult.TOO_MANY) {
+                identifiersTooMany += delta;
+            }
+        }
+
+        /**
+         * @return the state of the waiting for the messages counted so far, as given by {@link #checkReceivedMessages(List)} for the same messages.
+         */
+        public synchronized MessageIdentifier.MessageCheckResult getResult() {
+            if (identifiersTooMany > 0) {
+                return MessageIdentifier.MessageCheckResult.TOO_MANY;
+            }
+            return identifiersNotYet > 0 ? MessageIdentifier.MessageCheckResult.NOT_YET : MessageIdentifier.MessageCheckResult.OK;
+        }
+
+        /**
+         * @return the identifiers that have not received the messages they need, or have received too many.
+         */
+        public synchronized List<MessageIdentifier<M>> getIdentifiersNotOk() {
+            List<MessageIdentifier<M>> identifiersNotOk = new ArrayList<>();
+            for (MessageIdentifier<M>.Tally identifierTally : identifierTallies) {
+                if (identifierTally.getResult() != MessageIdentifier.MessageCheckResult.OK) {
+                    identifiersNotOk.add(identifierTally.getMessageIdentifier());
+                }
+            }
+            return identifiersNotOk;
+        }
+    }
+
 }
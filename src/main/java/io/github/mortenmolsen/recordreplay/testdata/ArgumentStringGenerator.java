@@ -1,11 +1,12 @@
 package io.github.mortenmolsen.recordreplay.testdata;
 
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
  * Generates argument strings for use with the recorded test data.
@@ -25,9 +26,15 @@ public class ArgumentStringGenerator {
     private static final Function<Object, String> IGNORE_GENERATOR = arg -> IGNORE_STRING;
 
     /**
-     * The argument part generators. They reside in a linkedlist so that the most specific can be added first.
+     * String used for null arguments.
      */
-    private final LinkedList<ArgumentPartGenerator> argumentPartGenerators = new LinkedList<>();
+    private static final String NULL_STRING = "null";
+
+    /**
+     * The generators currently in use. They are read by the calls of all call streams, and only rarely added to, so they are replaced as a whole when a generator is
+     * added - a call that is generating a string while a generator is added then only caches generators in the replaced generators.
+     */
+    private volatile Generators generators = new Generators(Collections.emptyList());
 
     public ArgumentStringGenerator() {
 
@@ -41,8 +48,11 @@ public class ArgumentStringGenerator {
     /**
      * Adds the given generator for the given class. IMPORTANT: add the least specific generators first.
      */
-    public void addGenerator(Class<?> clazz, Function<Object, String> argumentStringFunction) {
-        argumentPartGenerators.addFirst(new ArgumentPartGenerator(clazz, argumentStringFunction));
+    public synchronized void addGenerator(Class<?> clazz, Function<Object, String> argumentStringFunction) {
+        List<ArgumentPartGenerator> argumentPartGenerators = new ArrayList<>(generators.argumentPartGenerators.size() + 1);
+        argumentPartGenerators.add(new ArgumentPartGenerator(clazz, argumentStringFunction));
+        argumentPartGenerators.addAll(generators.argumentPartGenerators);
+        generators = new Generators(argumentPartGenerators);
     }
 
     /**
@@ -54,24 +64,91 @@ public class ArgumentStringGenerator {
     }
 
     public String generateString(Object[] args) {
-        return Arrays.asList(args)
-                .stream()
-                .map(arg -> getArgumentPartString(arg))
-                // we remove the argument part strings that are specifically set to the ignore string by the ignore generator
-                .filter(generatedString -> !generatedString.equals(IGNORE_STRING))
-                .collect(Collectors.joining(", "));
+        StringBuilder argumentsString = new StringBuilder();
+        for (Object arg : args) {
+            String argumentPartString = getArgumentPartString(arg);
+            // we remove the argument part strings that are specifically set to the ignore string by the ignore generator
+            if (!argumentPartString.equals(IGNORE_STRING)) {
+                if (argumentsString.length() > 0) {
+                    argumentsString.append(", ");
+                }
+                argumentsString.append(argumentPartString);
+            }
+        }
+        return argumentsString.toString();
+    }
+
+    /**
+     * Continues the given fingerprint (see {@link CallRequest#getFingerprint()}) with the argument string of the given arguments, giving the same fingerprint as hashing
+     * the string generated by {@link #generateString(Object[])}. The string of each argument is still generated, only the joining of them into one string is avoided.
+     */
+    long generateFingerprint(long fingerprint, Object[] args) {
+        boolean first = true;
+        for (Object arg : args) {
+            String argumentPartString = getArgumentPartString(arg);
+            if (!argumentPartString.equals(IGNORE_STRING)) {
+                if (!first) {
+                    fingerprint = CallRequest.hash(fingerprint, ", ");
+                }
+                fingerprint = CallRequest.hash(fingerprint, argumentPartString);
+                first = false;
+            }
+        }
+        return fingerprint;
     }
 
     private String getArgumentPartString(Object argument) {
-        for (ArgumentPartGenerator argumentPartGenerator : argumentPartGenerators) {
-            Optional<String> argumentPartString = argumentPartGenerator.generateIfPossible(argument);
-            if (argumentPartString.isPresent()) {
-                return argumentPartString.get();
+        if (argument == null) {
+            return NULL_STRING;
+        }
+        Generators currentGenerators = generators;
+        String argumentPartString = currentGenerators.getGenerator(argument.getClass()).argumentStringFunction.apply(argument);
+        if (argumentPartString != null) {
+            return argumentPartString;
+        }
+        // a generator giving null leaves the argument to the less specific generators
+        boolean generatorsTried = false;
+        for (ArgumentPartGenerator argumentPartGenerator : currentGenerators.argumentPartGenerators) {
+            if (argumentPartGenerator.forClass.isAssignableFrom(argument.getClass())) {
+                if (generatorsTried && (argumentPartString = argumentPartGenerator.argumentStringFunction.apply(argument)) != null) {
+                    return argumentPartString;
+                }
+                generatorsTried = true;
             }
         }
         throw new IllegalStateException("Argument generation must be possible for all objects.");
     }
 
+    /**
+     * The argument part generators, the most specific first, and the generator to use for each class of argument seen so far - so that the generators only have to be
+     * searched once per class. Never changed, except for the generators found being cached.
+     */
+    private static final class Generators {
+
+        private final List<ArgumentPartGenerator> argumentPartGenerators;
+        private final Map<Class<?>, ArgumentPartGenerator> generatorsByClass = new ConcurrentHashMap<>();
+
+        private Generators(List<ArgumentPartGenerator> argumentPartGenerators) {
+            this.argumentPartGenerators = Collections.unmodifiableList(argumentPartGenerators);
+        }
+
+        /**
+         * @return the most specific generator for the given class of argument.
+         */
+        private ArgumentPartGenerator getGenerator(Class<?> argumentClass) {
+            return generatorsByClass.computeIfAbsent(argumentClass, this::findGenerator);
+        }
+
+        private ArgumentPartGenerator findGenerator(Class<?> argumentClass) {
+            for (ArgumentPartGenerator argumentPartGenerator : argumentPartGenerators) {
+                if (argumentPartGenerator.forClass.isAssignableFrom(argumentClass)) {
+                    return argumentPartGenerator;
+                }
+            }
+            throw new IllegalStateException("Argument generation must be possible for all objects.");
+        }
+    }
+
     private static class ArgumentPartGenerator {
 
         private final Class<?> forClass;
@@ -81,10 +158,5 @@ public class ArgumentStringGenerator {
             this.forClass = forClass;
             this.argumentStringFunction = argumentStringFunction;
         }
-
-        public Optional<String> generateIfPossible(Object arg) {
-            return Optional.ofNullable(forClass.isAssignableFrom(arg.getClass()) ?
-                    argumentStringFunction.apply(arg) : null);
-        }
     }
 }
@@ -0,0 +1,85 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import javax.annotation.Nullable;
+
+/**
+ * The request of a call, identifying the record of the call. It is either a plain string (like the identifier of a simple call) or a method name with arguments, whose
+ * string is only generated when actually needed: the request is matched against the recorded request by its fingerprint (see {@link Record#getRequestFingerprint()}),
+ * which is computed from the argument part strings as they are generated, without joining them into the full string.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class CallRequest {
+
+    /**
+     * The 64-bit FNV-1a offset basis and prime.
+     */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String prefix;
+    private final @Nullable Object[] args;
+    private final @Nullable ArgumentStringGenerator argumentStringGenerator;
+
+    private @Nullable String string;
+    private @Nullable Long fingerprint;
+
+    private CallRequest(String prefix, @Nullable Object[] args, @Nullable ArgumentStringGenerator argumentStringGenerator) {
+        this.prefix = prefix;
+        this.args = args;
+        this.argumentStringGenerator = argumentStringGenerator;
+    }
+
+    /**
+     * @return the request given by a plain string.
+     */
+    public static CallRequest of(String request) {
+        return new CallRequest(request, null, null);
+    }
+
+    /**
+     * @return the request of a call with the given arguments, whose string is the prefix followed by the argument string (see
+     * {@link ArgumentStringGenerator#generateString(Object[])}).
+     */
+    public static CallRequest of(String prefix, Object[] args, ArgumentStringGenerator argumentStringGenerator) {
+        return new CallRequest(prefix, args, argumentStringGenerator);
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the characters of the string of the request.
+     */
+    public long getFingerprint() {
+        if (fingerprint == null) {
+            long hash = hash(FNV_OFFSET_BASIS, prefix);
+            if (args != null) {
+                //noinspection ConstantConditions
+                hash = argumentStringGenerator.generateFingerprint(hash, args);
+            }
+            fingerprint = hash;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Continues the 64-bit FNV-1a hash with the characters of the given string.
+     */
+    static long hash(long hash, CharSequence characters) {
+        for (int i = 0; i < characters.length(); i++) {
+            hash ^= characters.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the string of the request, generated the first time it is needed.
+     */
+    @Override
+    public String toString() {
+        if (string == null) {
+            //noinspection ConstantConditions
+            string = args != null ? prefix + argumentStringGenerator.generateString(args) : prefix;
+        }
+        return string;
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * Iterates over the records of a memory mapped recording file, decoding each record directly from the mapped buffer when it is consumed.
+ *
+ * @author Morten Meiling Olsen
+ */
+final class MappedRecordIterator implements RecordIterator {
+
+    private final ByteBuffer file;
+    private final RecordIndex index;
+    private final TestDataHandler testDataHandler;
+    private int nextRecord = 0;
+
+    MappedRecordIterator(ByteBuffer file, RecordIndex index, TestDataHandler testDataHandler) {
+        this.file = file;
+        this.index = index;
+        this.testDataHandler = testDataHandler;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRecord < index.size();
+    }
+
+    @Override
+    public Object next() {
+        return next(Object.class, testDataHandler);
+    }
+
+    @Override
+    public <K> K next(Class<K> recordClass, TestDataHandler testDataHandler) {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more records.");
+        }
+        try {
+            return this.testDataHandler.readRecord(new ByteBufferBackedInputStream(index.slice(file, nextRecord++)), recordClass);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error reading record.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping is released when the buffer is garbage collected
+        nextRecord = index.size();
+    }
+}
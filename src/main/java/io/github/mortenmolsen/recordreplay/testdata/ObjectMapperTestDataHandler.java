@@ -2,20 +2,45 @@ package io.github.mortenmolsen.recordreplay.testdata;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 /**
  * A test data handler that uses an object mapper.
+ * Records are decoded directly as the record class when they are consumed, and their responses are kept as the buffered tokens they were read as (see
+ * {@link Record#getResponse()}), which are bound directly to the class of the response when it is replayed.
  *
  * @author Morten Meiling Olsen
  */
 public class ObjectMapperTestDataHandler implements TestDataHandler {
 
-    private final ObjectMapper objectMapper;
+    /**
+     * The start of the message jackson uses when the input ends before the current structure is complete.
+     */
+    private static final String END_OF_INPUT = "Unexpected end-of-input";
+
+    protected final ObjectMapper objectMapper;
+
+    /**
+     * The readers used for binding records and responses, by the class they read. A reader looks up the deserializer of its class only once.
+     */
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
 
     public ObjectMapperTestDataHandler(ObjectMapper objectMapper) {
         this.objectMapper = objectMapper;
@@ -26,18 +51,300 @@ public class ObjectMapperTestDataHandler implements TestDataHandler {
         return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(objects);
     }
 
+    /**
+     * @return the tokens of the serialized value, which are written again by just replaying them.
+     */
+    @Override
+    public Object buffer(Object value) throws IOException {
+        TokenBuffer tokens = new TokenBuffer(objectMapper, false);
+        objectMapper.writeValue(tokens, value);
+        return tokens;
+    }
+
     @Override
     public List<Object> deserialize(InputStream inputStream)  throws IOException {
         return objectMapper.readValue(inputStream, new TypeReference<LinkedList<Object>>() { });
     }
 
+    @Override
+    public RecordIterator readRecords(InputStream inputStream) throws IOException {
+        return new ParserRecordIterator(createRecordsParser(inputStream), createRecordFormat());
+    }
+
+    @Override
+    public long[] indexRecords(InputStream inputStream) throws IOException {
+        long[] offsets = new long[64];
+        int numOffsets = 0;
+        try (JsonParser parser = createRecordsParser(inputStream)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a record object, got: " + token);
+                }
+                // NOTE: the token location may include the separator preceding the record, so the start is found from the end of the (single byte) start token instead
+                long start = parser.getCurrentLocation().getByteOffset() - 1;
+                parser.skipChildren();
+                long end = parser.getCurrentLocation().getByteOffset();
+                if (numOffsets == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[numOffsets++] = start;
+                offsets[numOffsets++] = end;
+            }
+        }
+        catch (JsonParseException e) {
+            if (!isEndOfInput(e)) {
+                throw e;
+            }
+            // an interrupted recording is not indexed, so it is streamed instead, which reports the missing records
+            return null;
+        }
+        return Arrays.copyOf(offsets, numOffsets);
+    }
+
+    @Override
+    public Object readRecord(InputStream inputStream) throws IOException {
+        return readRecord(inputStream, Object.class);
+    }
+
+    @Override
+    public <T> T readRecord(InputStream inputStream, Class<T> recordClass) throws IOException {
+        return getReader(recordClass).readValue(inputStream);
+    }
+
+    @Override
+    public RecordWriter writeRecords(OutputStream outputStream) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+        // records are written in the same (pretty printed) form as when serializing a whole list, keeping the files readable
+        generator.useDefaultPrettyPrinter();
+        generator.writeStartArray();
+        return new GeneratorRecordWriter(generator, createRecordFormat());
+    }
+
+    /**
+     * Creates the format of the records of a single file, which is used for writing or reading all the records of the file. By default each record is written exactly as
+     * the object mapper writes it.
+     */
+    protected RecordFormat createRecordFormat() {
+        return new RecordFormat() {
+            @Override
+            public void write(JsonGenerator generator, Object record) throws IOException {
+                objectMapper.writeValue(generator, record);
+            }
+
+            @Override
+            public TokenBuffer read(JsonParser parser) throws IOException {
+                TokenBuffer record = new TokenBuffer(parser);
+                record.copyCurrentStructure(parser);
+                return record;
+            }
+        };
+    }
+
     @Override
     public <T> T convertValue(Object value, Class<T> newClass) {
+        if (value instanceof TokenBuffer) {
+            // the tokens of a response read by this handler, which can be bound directly
+            try {
+                return readValue((TokenBuffer) value, newClass);
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("Error converting value to: " + newClass, e);
+            }
+        }
         return objectMapper.convertValue(value, newClass);
     }
 
+    private <T> T readValue(TokenBuffer tokens, Class<T> valueClass) throws IOException {
+        try (JsonParser parser = tokens.asParser()) {
+            return getReader(valueClass).readValue(parser);
+        }
+    }
+
+    private ObjectReader getReader(Class<?> valueClass) {
+        ObjectReader reader = readers.get(valueClass);
+        if (reader == null) {
+            reader = objectMapper.reader(valueClass);
+            readers.putIfAbsent(valueClass, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * @return a parser positioned at the start of the array holding the records.
+     */
+    private JsonParser createRecordsParser(InputStream inputStream) throws IOException {
+        JsonParser parser = objectMapper.getFactory().createParser(inputStream);
+        try {
+            JsonToken firstToken = parser.nextToken();
+            if (firstToken != JsonToken.START_ARRAY) {
+                throw new IOException("Expected the test data to be an array of records, but it started with: " + firstToken);
+            }
+        }
+        catch (IOException e) {
+            parser.close();
+            throw e;
+        }
+        return parser;
+    }
+
+    /**
+     * @return whether the exception was caused by the input ending before the records were complete.
+     */
+    private static boolean isEndOfInput(JsonParseException e) {
+        return e.getOriginalMessage() != null && e.getOriginalMessage().startsWith(END_OF_INPUT);
+    }
+
     @Override
     public String getExtension() {
         return ".json";
     }
+
+    /**
+     * Writes and reads the records of a single file, which makes it possible to write a record based on the records written before it in the same file, like writing a
+     * reference to an earlier value instead of the value itself. The records of a file are read in the order they were written.
+     */
+    protected interface RecordFormat {
+
+        void write(JsonGenerator generator, Object record) throws IOException;
+
+        /**
+         * Reads the record starting at the current token of the parser, leaving the parser at its last token.
+         *
+         * @return the tokens of the record, as the object mapper wrote them.
+         */
+        TokenBuffer read(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Iterates over the elements of the top level array, buffering the tokens of only a single record ahead of the one being consumed. The buffered record is bound when
+     * it is consumed, directly as the class it is consumed as.
+     */
+    private class ParserRecordIterator implements RecordIterator {
+
+        private final JsonParser parser;
+        private final RecordFormat recordFormat;
+        private @Nullable TokenBuffer nextRecord;
+        private boolean exhausted = false;
+        private boolean truncated = false;
+
+        private ParserRecordIterator(JsonParser parser, RecordFormat recordFormat) {
+            this.parser = parser;
+            this.recordFormat = recordFormat;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRecord == null && !exhausted) {
+                try {
+                    JsonToken token = parser.nextToken();
+                    if (token == null || token == JsonToken.END_ARRAY) {
+                        close();
+                    }
+                    else {
+                        nextRecord = recordFormat.read(parser);
+                    }
+                }
+                catch (JsonParseException e) {
+                    if (!isEndOfInput(e)) {
+                        throw new RuntimeException("Error reading record.", e);
+                    }
+                    // the file ends in the middle of the records, most likely because the recording was interrupted. The records read so far are still usable, but
+                    // replaying fails if more records are needed (see TestDataForReplaying#hasData)
+                    System.err.println("WARNING: Test data ended unexpectedly (" + e.getOriginalMessage() + "), the records after the end are missing.");
+                    truncated = true;
+                    closeQuietly();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Error reading record.", e);
+                }
+            }
+            return nextRecord != null;
+        }
+
+        @Override
+        public Object next() {
+            return next(Object.class, ObjectMapperTestDataHandler.this);
+        }
+
+        @Override
+        public <K> K next(Class<K> recordClass, TestDataHandler testDataHandler) {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more records.");
+            }
+            TokenBuffer record = nextRecord;
+            nextRecord = null;
+            try {
+                //noinspection ConstantConditions
+                return readValue(record, recordClass);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error reading record.", e);
+            }
+        }
+
+        /**
+         * @return the buffered tokens of the record, which can be bound any number of times.
+         */
+        @Override
+        public Object nextBuffered() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more records.");
+            }
+            TokenBuffer record = nextRecord;
+            nextRecord = null;
+            return record;
+        }
+
+        @Override
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        @Override
+        public void close() throws IOException {
+            exhausted = true;
+            parser.close();
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            }
+            catch (IOException e) {
+                // we are done with the file anyway
+            }
+        }
+    }
+
+    /**
+     * Appends each record as an element of the top level array, closing the array when the writer is closed.
+     */
+    private class GeneratorRecordWriter implements RecordWriter {
+
+        private final JsonGenerator generator;
+        private final RecordFormat recordFormat;
+
+        private GeneratorRecordWriter(JsonGenerator generator, RecordFormat recordFormat) {
+            this.generator = generator;
+            this.recordFormat = recordFormat;
+        }
+
+        @Override
+        public void write(Object record) throws IOException {
+            recordFormat.write(generator, record);
+            // flush the record out of the generator buffer, so that the file contains every record written so far
+            generator.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                generator.writeEndArray();
+            }
+            finally {
+                generator.close();
+            }
+        }
+    }
 }
@@ -3,6 +3,9 @@ package io.github.mortenmolsen.recordreplay.testdata;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.TokenBufferDeserializer;
 import io.github.mortenmolsen.recordreplay.messages.Message;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -15,7 +18,63 @@ import lombok.NoArgsConstructor;
 @Data
 @NoArgsConstructor
 public abstract class Record<T extends Message> {
+    /**
+     * The request of the call, possibly truncated (see {@link io.github.mortenmolsen.recordreplay.RecordingTestCallManager#setMaxRequestLength(int)}), so it is only
+     * meant to be read.
+     */
     private String request;
+
+    /**
+     * The fingerprint of the full request (see {@link CallRequest#getFingerprint()}), which is what the request is matched by when replaying. Records recorded without
+     * a fingerprint are matched by their request.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long requestFingerprint;
+
+    /**
+     * When read from test data, the response is kept as the tokens it was read as, since its actual class is only known when it is replayed (see
+     * {@link TestDataHandler#convertValue(Object, Class)}).
+     */
+    @JsonDeserialize(using = TokenBufferDeserializer.class)
     private Object response;
+
+    /**
+     * If the response is stored in the {@link SharedResponseStore} (rather than in the record itself), this is the hash identifying it.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String sharedResponseHash;
+
+    /**
+     * If the response is spilled to a sidecar file of the recording (rather than stored in the record itself), this is the name of the file. The response is then only
+     * read when the call is replayed.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String spilledResponse;
+
+    /**
+     * The key of the call stream the call was made in, if the calls were made concurrently (see {@link io.github.mortenmolsen.recordreplay.TestCallManager}).
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String callStream;
     private List<T> messages = new ArrayList<>();
+
+    /**
+     * @return whether this is the record of the given request.
+     */
+    public boolean isRecordOf(CallRequest callRequest) {
+        if (requestFingerprint != null) {
+            return requestFingerprint == callRequest.getFingerprint();
+        }
+        return callRequest.toString().equals(request);
+    }
+
+    /**
+     * Binds the response to the given class, reading it from its sidecar file first if it has been spilled.
+     */
+    public <R> R bindResponse(Class<R> responseClass, TestDataHandler testDataHandler) {
+        if (response instanceof StoredResponse) {
+            return ((StoredResponse) response).read(responseClass);
+        }
+        return testDataHandler.convertValue(response, responseClass);
+    }
 }
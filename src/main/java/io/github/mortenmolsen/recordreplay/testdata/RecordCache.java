@@ -0,0 +1,183 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A JVM wide cache of recordings. Since each test normally gets its own Spring context (the {@link io.github.mortenmolsen.recordreplay.TestCallManager} is stateful), the
+ * same recording would otherwise be read, decompressed and parsed again by every repetition of a test.
+ * <p>
+ * Each record is cached in its buffered form (see {@link RecordIterator#nextBuffered()}), like the tokens of the record, so a recording is only parsed once - a cursor over
+ * the cached records binds each record directly as the class it is consumed as, without parsing the recording again. The buffered records are shared, but never modified.
+ * <p>
+ * Recordings are cached by their source (like the path of the file), size and modification time, so a changed recording is read again. The least recently used recordings
+ * are evicted when the size of the cached recordings exceeds the {@link #budget}. A recording is charged the number of (uncompressed) bytes its records were read from,
+ * and its buffered records take up somewhat more memory than that. The cache is disabled until a budget is set.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class RecordCache {
+
+    /**
+     * The maximum total size, in bytes, of the recordings held by the cache.
+     */
+    private static long budget = 0;
+
+    private static long cachedBytes = 0;
+
+    private static final Map<String, CachedRecording> CACHED_RECORDINGS = new LinkedHashMap<>(16, 0.75f, true);
+
+    private RecordCache() {
+    }
+
+    /**
+     * Sets the maximum total size, in bytes, of the recordings held by the cache. A budget of 0 disables the cache.
+     */
+    public static synchronized void setBudget(long budget) {
+        RecordCache.budget = budget;
+        evictOverBudget();
+    }
+
+    /**
+     * Reads the records of the given recording from the cache, or from the stream if they are not cached.
+     *
+     * @param source identifies the recording, like the path of its file.
+     * @param size the size of the recording (file).
+     * @param lastModified when the recording was last modified.
+     * @param opener opens the stream of the recording - which is only done if the recording is not cached.
+     * @return the records, or null if the recording is larger than the budget (in which case it should be streamed instead).
+     */
+    static @Nullable RecordIterator read(String source, long size, long lastModified, RecordingOpener opener, TestDataHandler testDataHandler) throws IOException {
+        CachedRecording cachedRecording;
+        synchronized (RecordCache.class) {
+            if (size > budget) {
+                return null;
+            }
+            cachedRecording = CACHED_RECORDINGS.get(source);
+        }
+        if (cachedRecording == null || cachedRecording.size != size || cachedRecording.lastModified != lastModified) {
+            cachedRecording = readRecording(size, lastModified, opener, testDataHandler);
+            synchronized (RecordCache.class) {
+                CachedRecording replacedRecording = CACHED_RECORDINGS.put(source, cachedRecording);
+                if (replacedRecording != null) {
+                    cachedBytes -= replacedRecording.bytes;
+                }
+                cachedBytes += cachedRecording.bytes;
+                evictOverBudget();
+            }
+        }
+        return RecordIterator.of(cachedRecording.records, cachedRecording.truncated);
+    }
+
+    private static CachedRecording readRecording(long size, long lastModified, RecordingOpener opener, TestDataHandler testDataHandler) throws IOException {
+        CountingInputStream inputStream = new CountingInputStream(opener.open());
+        List<Object> records = new ArrayList<>();
+        boolean truncated;
+        try (RecordIterator recordIterator = TestDataFiles.readRecords(inputStream, testDataHandler)) {
+            while (recordIterator.hasNext()) {
+                records.add(recordIterator.nextBuffered());
+            }
+            truncated = recordIterator.isTruncated();
+        }
+        return new CachedRecording(size, lastModified, Collections.unmodifiableList(records), truncated, inputStream.count);
+    }
+
+    private static void evictOverBudget() {
+        Iterator<CachedRecording> leastRecentlyUsed = CACHED_RECORDINGS.values().iterator();
+        while (cachedBytes > budget && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().bytes;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Opens the stream of a recording.
+     */
+    interface RecordingOpener {
+        InputStream open() throws IOException;
+    }
+
+    private static final class CachedRecording {
+
+        private final long size;
+        private final long lastModified;
+        private final List<Object> records;
+
+        /**
+         * Whether the recording ends in the middle of the records, see {@link RecordIterator#isTruncated()}.
+         */
+        private final boolean truncated;
+
+        /**
+         * The number of (uncompressed) bytes the records were read from, which is what counts towards the budget.
+         */
+        private final long bytes;
+
+        private CachedRecording(long size, long lastModified, List<Object> records, boolean truncated, long bytes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.records = records;
+            this.truncated = truncated;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the (decompressed) stream of a recording.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+        private long markedCount = 0;
+
+        private CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            super.mark(readLimit);
+            markedCount = count;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            count = markedCount;
+        }
+    }
+}
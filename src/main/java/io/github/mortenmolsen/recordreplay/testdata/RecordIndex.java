@@ -0,0 +1,176 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * The offsets of the records in a recording file, making it possible to read the records individually from a memory mapped file.
+ * Building the index requires a scan of the whole file, so the index is stored in a small sidecar file next to the recording and only rebuilt when the recording changes.
+ *
+ * @author Morten Meiling Olsen
+ */
+final class RecordIndex {
+
+    /**
+     * The extension added to the name of the recording file to get the name of its index file.
+     */
+    static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x52524958;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The offset of the first byte after the header of the recording file. The record offsets are relative to this.
+     */
+    private final long dataStart;
+
+    /**
+     * The start and end offset of each record, one after the other.
+     */
+    private final long[] offsets;
+
+    private RecordIndex(long dataStart, long[] offsets) {
+        this.dataStart = dataStart;
+        this.offsets = offsets;
+    }
+
+    int size() {
+        return offsets.length / 2;
+    }
+
+    /**
+     * @return the bytes of the record with the given number, sliced from the buffer holding the whole recording file.
+     */
+    ByteBuffer slice(ByteBuffer file, int record) {
+        ByteBuffer slice = file.duplicate();
+        slice.limit((int) (dataStart + offsets[2 * record + 1]));
+        slice.position((int) (dataStart + offsets[2 * record]));
+        return slice.slice();
+    }
+
+    /**
+     * Retrieves the index of the given recording, reading it from the sidecar file if it is up to date, or building (and storing) it otherwise.
+     *
+     * @param file the whole recording file.
+     * @return the index - or null if the records of the file cannot be indexed by the handler.
+     */
+    static @Nullable RecordIndex load(Path pathToFile, ByteBuffer file, TestDataHandler testDataHandler) throws IOException {
+        Path pathToIndex = pathToFile.resolveSibling(pathToFile.getFileName() + EXTENSION);
+        long size = Files.size(pathToFile);
+        long lastModified = Files.getLastModifiedTime(pathToFile).toMillis();
+        RecordIndex index = read(pathToIndex, size, lastModified);
+        if (index == null) {
+            index = build(file, testDataHandler);
+            if (index != null) {
+                write(index, pathToIndex, size, lastModified);
+            }
+        }
+        return index;
+    }
+
+    private static @Nullable RecordIndex build(ByteBuffer file, TestDataHandler testDataHandler) throws IOException {
+        ByteBuffer data = file.duplicate();
+        testDataHandler.readHeader(new MarkableByteBufferInputStream(data));
+        long dataStart = data.position();
+        long[] offsets = testDataHandler.indexRecords(new ByteBufferBackedInputStream(data));
+        return offsets != null ? new RecordIndex(dataStart, offsets) : null;
+    }
+
+    /**
+     * @return the index stored in the given file, or null if there is no index or it does not belong to the current version of the recording.
+     */
+    private static @Nullable RecordIndex read(Path pathToIndex, long size, long lastModified) {
+        if (!Files.exists(pathToIndex)) {
+            return null;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(pathToIndex)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != FORMAT_VERSION || inputStream.readLong() != size || inputStream.readLong() != lastModified) {
+                return null;
+            }
+            long dataStart = inputStream.readLong();
+            long[] offsets = new long[inputStream.readInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = inputStream.readLong();
+            }
+            return new RecordIndex(dataStart, offsets);
+        }
+        catch (IOException e) {
+            // a broken index is simply rebuilt
+            return null;
+        }
+    }
+
+    /**
+     * Stores the index. The index is written to a temporary file that is then moved in place, since other JVMs replaying the same recording might be reading it.
+     */
+    private static void write(RecordIndex index, Path pathToIndex, long size, long lastModified) {
+        try {
+            Path temporaryFile = Files.createTempFile(pathToIndex.getParent(), pathToIndex.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                    outputStream.writeInt(MAGIC);
+                    outputStream.writeInt(FORMAT_VERSION);
+                    outputStream.writeLong(size);
+                    outputStream.writeLong(lastModified);
+                    outputStream.writeLong(index.dataStart);
+                    outputStream.writeInt(index.offsets.length);
+                    for (long offset : index.offsets) {
+                        outputStream.writeLong(offset);
+                    }
+                }
+                try {
+                    Files.move(temporaryFile, pathToIndex, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile, pathToIndex, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+        catch (IOException e) {
+            // the index is just an optimization, it will be rebuilt next time
+            System.err.println("WARNING: Could not store the record index: " + pathToIndex + " (" + e.getMessage() + "), it is rebuilt the next time the recording is read.");
+        }
+    }
+
+    /**
+     * A stream reading the given buffer, whose mark is the mark of the buffer - so the header can be peeked at (see {@link TestDataHandler#readHeader(InputStream)})
+     * while the position of the buffer still tells where the records start.
+     */
+    private static final class MarkableByteBufferInputStream extends ByteBufferBackedInputStream {
+
+        private MarkableByteBufferInputStream(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            _b.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            _b.reset();
+        }
+    }
+}
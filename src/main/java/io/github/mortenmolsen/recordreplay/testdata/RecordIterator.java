@@ -0,0 +1,75 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates over the records of a test data file. Implementations may read the records lazily from an underlying stream, which is why the iterator must be closed when
+ * it is no longer needed.
+ *
+ * @author Morten Meiling Olsen
+ */
+public interface RecordIterator extends Iterator<Object>, Closeable {
+
+    /**
+     * Reads the next record as the given class. By default the record is read in its generic form (see {@link #next()}) and then converted by the given handler -
+     * iterators should override this if they are able to decode the record directly as the given class.
+     */
+    default <K> K next(Class<K> recordClass, TestDataHandler testDataHandler) {
+        return testDataHandler.convertValue(next(), recordClass);
+    }
+
+    /**
+     * Reads the next record in a form that can be read as a record any number of times, by converting it with {@link TestDataHandler#convertValue(Object, Class)}, and
+     * that is never modified by doing so - like the buffered tokens of the record. By default the record in its generic form (see {@link #next()}).
+     */
+    default Object nextBuffered() {
+        return next();
+    }
+
+    /**
+     * @return true if the iterator has ended because the recording ends in the middle of the records (most likely because the recording was interrupted), so records
+     * are missing after the ones returned.
+     */
+    default boolean isTruncated() {
+        return false;
+    }
+
+    /**
+     * @return an iterator over records that have already been read into memory.
+     */
+    static RecordIterator of(List<Object> records) {
+        return of(records, false);
+    }
+
+    /**
+     * @param truncated whether records are missing after the given ones, see {@link #isTruncated()}.
+     * @return an iterator over records that have already been read into memory, which may be in the form returned by {@link #nextBuffered()}.
+     */
+    static RecordIterator of(List<Object> records, boolean truncated) {
+        Iterator<Object> iterator = records.iterator();
+        return new RecordIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                return iterator.next();
+            }
+
+            @Override
+            public boolean isTruncated() {
+                return truncated && !iterator.hasNext();
+            }
+
+            @Override
+            public void close() throws IOException {
+                // nothing to close, the records are already in memory
+            }
+        };
+    }
+}
@@ -0,0 +1,24 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes records to a test data file one at a time, so that the records do not have to be kept in memory until the whole file can be written.
+ *
+ * @author Morten Meiling Olsen
+ */
+public interface RecordWriter extends Closeable {
+
+    /**
+     * Appends the given record. Once this method returns, the record has been handed to the underlying stream, so an interrupted recording leaves the records written so
+     * far in the file.
+     */
+    void write(Object record) throws IOException;
+
+    /**
+     * Finalizes the file (writing any footer needed) and closes the underlying stream.
+     */
+    @Override
+    void close() throws IOException;
+}
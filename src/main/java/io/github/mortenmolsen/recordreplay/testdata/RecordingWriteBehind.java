@@ -0,0 +1,171 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * The JVM wide background writer of recordings, used by {@link TestDataForRecording} when write-behind is enabled. Writes are done by a single thread, in the order they
+ * are handed over, so the records of a recording are always written in order.
+ * <p>
+ * Outstanding writes are waited for after each test class (see {@link io.github.mortenmolsen.recordreplay.RecordReplayTestExecutionListener}) and when the JVM shuts
+ * down. {@link #awaitOutstandingWrites()} can also be called directly, like from an {@code @AfterClass} method.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class RecordingWriteBehind {
+
+    private static @Nullable ExecutorService executor;
+
+    /**
+     * The most recently handed over write. Since writes are done in order, all writes are done when this one is.
+     */
+    private static @Nullable Future<?> lastWrite;
+
+    private static final List<String> FAILED_WRITES = new ArrayList<>();
+
+    private static final AtomicInteger QUEUE_DEPTH = new AtomicInteger();
+    private static final AtomicInteger MAX_QUEUE_DEPTH = new AtomicInteger();
+    private static final AtomicLong COMPLETED_WRITES = new AtomicLong();
+    private static final AtomicLong TOTAL_WRITE_LATENCY_NANOS = new AtomicLong();
+    private static final AtomicLong MAX_WRITE_LATENCY_NANOS = new AtomicLong();
+
+    private RecordingWriteBehind() {
+    }
+
+    /**
+     * Hands a write over to the background writer.
+     *
+     * @param description describes the write, used if the write fails.
+     */
+    static synchronized void submit(String description, Write write) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "record-replay-write-behind");
+                // the shutdown hook waits for the outstanding writes, so the thread must not keep the JVM alive by itself
+                thread.setDaemon(true);
+                return thread;
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(RecordingWriteBehind::awaitOutstandingWritesOnShutdown, "record-replay-write-behind-shutdown"));
+        }
+        long submitted = System.nanoTime();
+        MAX_QUEUE_DEPTH.accumulateAndGet(QUEUE_DEPTH.incrementAndGet(), Math::max);
+        lastWrite = executor.submit(() -> {
+            try {
+                write.write();
+            }
+            // errors too, like a StackOverflowError serializing a cyclic response - the failure is reported, and the writes of the other recordings go on
+            catch (IOException | RuntimeException | Error e) {
+                recordFailure(description, e);
+            }
+            finally {
+                long latency = System.nanoTime() - submitted;
+                QUEUE_DEPTH.decrementAndGet();
+                COMPLETED_WRITES.incrementAndGet();
+                TOTAL_WRITE_LATENCY_NANOS.addAndGet(latency);
+                MAX_WRITE_LATENCY_NANOS.accumulateAndGet(latency, Math::max);
+            }
+        });
+    }
+
+    /**
+     * Waits until all writes handed over so far are done.
+     *
+     * @throws IllegalStateException if any of the writes failed since this was last called.
+     */
+    public static void awaitOutstandingWrites() throws InterruptedException {
+        Future<?> write;
+        synchronized (RecordingWriteBehind.class) {
+            write = lastWrite;
+        }
+        if (write != null) {
+            try {
+                write.get();
+            }
+            catch (ExecutionException e) {
+                // the writes record their own failures, so this is only reached by a failure outside of the write
+                recordFailure("Writing in the background", e.getCause());
+            }
+        }
+        List<String> failedWrites;
+        synchronized (FAILED_WRITES) {
+            failedWrites = new ArrayList<>(FAILED_WRITES);
+            FAILED_WRITES.clear();
+        }
+        if (!failedWrites.isEmpty()) {
+            throw new IllegalStateException("Writing recordings failed: " + failedWrites);
+        }
+    }
+
+    private static void recordFailure(String description, Throwable failure) {
+        System.out.println("Error writing recording: " + description + " (" + failure + ")");
+        synchronized (FAILED_WRITES) {
+            FAILED_WRITES.add(description + " (" + failure + ")");
+        }
+    }
+
+    private static void awaitOutstandingWritesOnShutdown() {
+        int queueDepth = QUEUE_DEPTH.get();
+        if (queueDepth > 0) {
+            System.out.println("Waiting for " + queueDepth + " recording writes to complete.");
+        }
+        try {
+            awaitOutstandingWrites();
+        }
+        catch (InterruptedException | IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of writes handed over that are not yet done.
+     */
+    public static int getQueueDepth() {
+        return QUEUE_DEPTH.get();
+    }
+
+    /**
+     * @return the highest number of outstanding writes seen.
+     */
+    public static int getMaxQueueDepth() {
+        return MAX_QUEUE_DEPTH.get();
+    }
+
+    /**
+     * @return the number of writes done (including failed writes).
+     */
+    public static long getCompletedWrites() {
+        return COMPLETED_WRITES.get();
+    }
+
+    /**
+     * @return the average time, in milliseconds, from a write being handed over until it is done.
+     */
+    public static double getAverageWriteLatencyMillis() {
+        long completedWrites = COMPLETED_WRITES.get();
+        return completedWrites == 0 ? 0 : (double) TOTAL_WRITE_LATENCY_NANOS.get() / completedWrites / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the longest time, in milliseconds, from a write being handed over until it was done.
+     */
+    public static double getMaxWriteLatencyMillis() {
+        return (double) MAX_WRITE_LATENCY_NANOS.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * A write done by the background writer.
+     */
+    interface Write {
+        void write() throws IOException;
+    }
+}
@@ -0,0 +1,211 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.springframework.util.StreamUtils;
+
+/**
+ * Stores responses by the hash of their content, so that a response recorded by many tests (like reference data fetched at the start of each test) is only stored once.
+ * The responses are stored in the {@link #DIRECTORY} under the path of the test data, and a record refers to its response by the hash (see
+ * {@link Record#getSharedResponseHash()}).
+ * When replaying, the stored responses are cached by the store itself, so within the {@link #setCacheBudget(long) cache budget} each response is read from its file once
+ * per JVM and then shared by all the tests replaying it. The budget is separate from the one of the {@link RecordCache}, and the cache is enabled by default since the
+ * responses are shared exactly because they are replayed again and again.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class SharedResponseStore {
+
+    /**
+     * The name of the directory holding the shared responses.
+     */
+    public static final String DIRECTORY = "shared-responses";
+
+    /**
+     * The default maximum total size, in bytes, of the cached responses.
+     */
+    public static final long DEFAULT_CACHE_BUDGET = 16 * 1024 * 1024;
+
+    private static long cacheBudget = DEFAULT_CACHE_BUDGET;
+
+    private static long cachedBytes = 0;
+
+    private static final Map<Path, CachedResponse> CACHED_RESPONSES = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Path directory;
+    private final TestDataHandler testDataHandler;
+
+    public SharedResponseStore(Path pathToTestData, TestDataHandler testDataHandler) {
+        this.directory = pathToTestData.resolve(DIRECTORY);
+        this.testDataHandler = testDataHandler;
+    }
+
+    /**
+     * Sets the maximum total size, in bytes, of the (uncompressed) responses cached when replaying. The least recently used responses are evicted when the budget is
+     * exceeded, and a budget of 0 disables the cache.
+     */
+    public static synchronized void setCacheBudget(long cacheBudget) {
+        SharedResponseStore.cacheBudget = cacheBudget;
+        evictOverBudget();
+    }
+
+    /**
+     * @return the serialized form of the response, which is what is stored (and hashed).
+     */
+    public byte[] serialize(Object response) throws IOException {
+        return testDataHandler.serialize(Collections.singletonList(response));
+    }
+
+    /**
+     * Stores the serialized response (see {@link #serialize(Object)}), unless an identical response is already stored.
+     *
+     * @return the hash identifying the response.
+     */
+    public String store(byte[] serializedResponse) throws IOException {
+        String hash = hash(serializedResponse);
+        Path pathToFile = getPathToFile(hash);
+        if (!Files.exists(pathToFile)) {
+            Files.createDirectories(directory);
+            // the response is written to a temporary file that is then moved in place, so that a response is never read before it is completely written
+            Path temporaryFile = Files.createTempFile(directory, hash, ".tmp");
+            try {
+                try (OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+                    testDataHandler.writeHeader(outputStream);
+                    outputStream.write(serializedResponse);
+                }
+                try {
+                    Files.move(temporaryFile, pathToFile, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile, pathToFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return a reference to the response stored under the given hash, to be set as the response of a record. The response is read when the record is replayed (see
+     * {@link Record#bindResponse(Class, TestDataHandler)}).
+     */
+    public Object read(String hash) {
+        return new SharedResponse(getPathToFile(hash));
+    }
+
+    private Path getPathToFile(String hash) {
+        return directory.resolve(hash + testDataHandler.getExtension());
+    }
+
+    private final class SharedResponse implements StoredResponse {
+
+        private final Path pathToFile;
+
+        private SharedResponse(Path pathToFile) {
+            this.pathToFile = pathToFile;
+        }
+
+        @Override
+        public <T> T read(Class<T> responseClass) {
+            try {
+                byte[] bytes = readCached(pathToFile.toAbsolutePath());
+                InputStream inputStream = bytes != null ? new ByteArrayInputStream(bytes) : TestDataFiles.openForReading(pathToFile);
+                return SpilledResponse.read(inputStream, responseClass, testDataHandler, pathToFile);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error loading shared response: " + pathToFile, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Shared response in: " + pathToFile;
+        }
+    }
+
+    /**
+     * Reads the (uncompressed) bytes of the given response file from the cache, or from the file if they are not cached. A response is stored once and never changed,
+     * but the file is checked anyway, in case the test data is replaced while the JVM is running.
+     *
+     * @return the bytes, or null if the file is larger than the budget (in which case it should be streamed instead).
+     */
+    private static @Nullable byte[] readCached(Path pathToFile) throws IOException {
+        long size = Files.size(pathToFile);
+        long lastModified = Files.getLastModifiedTime(pathToFile).toMillis();
+        CachedResponse cachedResponse;
+        synchronized (SharedResponseStore.class) {
+            if (size > cacheBudget) {
+                return null;
+            }
+            cachedResponse = CACHED_RESPONSES.get(pathToFile);
+        }
+        if (cachedResponse == null || cachedResponse.size != size || cachedResponse.lastModified != lastModified) {
+            byte[] bytes;
+            try (InputStream inputStream = TestDataFiles.openForReading(pathToFile)) {
+                bytes = StreamUtils.copyToByteArray(inputStream);
+            }
+            cachedResponse = new CachedResponse(size, lastModified, bytes);
+            synchronized (SharedResponseStore.class) {
+                CachedResponse replacedResponse = CACHED_RESPONSES.put(pathToFile, cachedResponse);
+                if (replacedResponse != null) {
+                    cachedBytes -= replacedResponse.bytes.length;
+                }
+                cachedBytes += bytes.length;
+                evictOverBudget();
+            }
+        }
+        return cachedResponse.bytes;
+    }
+
+    private static void evictOverBudget() {
+        Iterator<CachedResponse> leastRecentlyUsed = CACHED_RESPONSES.values().iterator();
+        while (cachedBytes > cacheBudget && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().bytes.length;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private static final class CachedResponse {
+
+        private final long size;
+        private final long lastModified;
+        private final byte[] bytes;
+
+        private CachedResponse(long size, long lastModified, byte[] bytes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 must be supported by all JVMs.", e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * A test data handler that stores the records in the binary Smile format. The files are much smaller and faster to load than the JSON files written by the
+ * {@link ObjectMapperTestDataHandler}, but they cannot be read (or diffed) as text.
+ * Repeated field names and short string values are written once and referenced afterwards. Smile only shares string values of up to 64 bytes, so the requests of the
+ * records (see {@link Record#getRequest()}), which are often longer and repeated throughout a file, are shared by the handler itself: a request is written in full the
+ * first time, and as its number in the file ({@link #REQUEST_REFERENCE}) every time after that.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class SmileTestDataHandler extends ObjectMapperTestDataHandler {
+
+    /**
+     * Identifies a file written by this handler. Starts with a NUL char so that git also recognises the file as binary.
+     */
+    private static final byte[] MAGIC = {0, 'R', 'R', 'S'};
+
+    /**
+     * The version of the file format, written right after the {@link #MAGIC}. Must be incremented if the format changes in a way older versions cannot read.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * The oldest version of the file format that can still be read. Version 1 has no request references.
+     */
+    private static final int OLDEST_FORMAT_VERSION = 1;
+
+    /**
+     * The field a record refers to an earlier request of the same file by, instead of writing the request itself.
+     */
+    static final String REQUEST_REFERENCE = "#request";
+
+    private static final String REQUEST = "request";
+
+    public SmileTestDataHandler() {
+        this(objectMapper -> { });
+    }
+
+    /**
+     * @param objectMapperConfiguration configuration applied to the (Smile) object mapper, like adding MixIns. This will usually be
+     *                                  {@code RecordReplayConfigurer::configureObjectMapper}.
+     */
+    public SmileTestDataHandler(Consumer<ObjectMapper> objectMapperConfiguration) {
+        super(createObjectMapper(objectMapperConfiguration));
+    }
+
+    private static ObjectMapper createObjectMapper(Consumer<ObjectMapper> objectMapperConfiguration) {
+        SmileFactory smileFactory = new SmileFactory();
+        smileFactory.enable(SmileGenerator.Feature.CHECK_SHARED_NAMES);
+        // Only applies to values of up to 64 bytes, longer values are never shared
+        smileFactory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+        ObjectMapper objectMapper = new ObjectMapper(smileFactory);
+        objectMapperConfiguration.accept(objectMapper);
+        return objectMapper;
+    }
+
+    @Override
+    public void writeHeader(OutputStream outputStream) throws IOException {
+        outputStream.write(MAGIC);
+        outputStream.write(FORMAT_VERSION);
+    }
+
+    @Override
+    public void readHeader(InputStream inputStream) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        new DataInputStream(inputStream).readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a Smile test data file.");
+        }
+        int version = inputStream.read();
+        if (version < OLDEST_FORMAT_VERSION || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported Smile test data format version: " + version + ", expected version: " + OLDEST_FORMAT_VERSION + " to " + FORMAT_VERSION);
+        }
+    }
+
+    /**
+     * Smile records refer back to names and values written in earlier records, so a record cannot be read on its own.
+     */
+    @Override
+    public long[] indexRecords(InputStream inputStream) throws IOException {
+        return null;
+    }
+
+    @Override
+    protected RecordFormat createRecordFormat() {
+        return new RequestDictionaryFormat();
+    }
+
+    @Override
+    public String getExtension() {
+        return ".smile";
+    }
+
+    /**
+     * Writes each request once per file, and refers to it by its number afterwards. The numbers are given in the order the requests are first written, which is also the
+     * order they are read in.
+     */
+    private class RequestDictionaryFormat implements RecordFormat {
+
+        private final Map<String, Integer> numbersOfWrittenRequests = new HashMap<>();
+        private final List<String> readRequests = new ArrayList<>();
+
+        @Override
+        public void write(JsonGenerator generator, Object record) throws IOException {
+            TokenBuffer tokens = new TokenBuffer(objectMapper, false);
+            objectMapper.writeValue(tokens, record);
+            try (JsonParser parser = tokens.asParser()) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    generator.copyCurrentStructure(parser);
+                    return;
+                }
+                generator.writeStartObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (fieldName.equals(REQUEST) && value == JsonToken.VALUE_STRING) {
+                        String request = parser.getText();
+                        Integer number = numbersOfWrittenRequests.get(request);
+                        if (number != null) {
+                            generator.writeNumberField(REQUEST_REFERENCE, number);
+                            continue;
+                        }
+                        numbersOfWrittenRequests.put(request, numbersOfWrittenRequests.size());
+                    }
+                    generator.writeFieldName(fieldName);
+                    generator.copyCurrentStructure(parser);
+                }
+                generator.writeEndObject();
+            }
+        }
+
+        @Override
+        public TokenBuffer read(JsonParser parser) throws IOException {
+            TokenBuffer record = new TokenBuffer(parser);
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                record.copyCurrentStructure(parser);
+                return record;
+            }
+            record.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (fieldName.equals(REQUEST_REFERENCE)) {
+                    int number = parser.getIntValue();
+                    if (number < 0 || number >= readRequests.size()) {
+                        throw new IOException("Reference to an unknown request: " + number + ", only " + readRequests.size() + " requests have been read.");
+                    }
+                    record.writeStringField(REQUEST, readRequests.get(number));
+                    continue;
+                }
+                if (fieldName.equals(REQUEST) && value == JsonToken.VALUE_STRING) {
+                    readRequests.add(parser.getText());
+                }
+                record.writeFieldName(fieldName);
+                record.copyCurrentStructure(parser);
+            }
+            record.writeEndObject();
+            return record;
+        }
+    }
+}
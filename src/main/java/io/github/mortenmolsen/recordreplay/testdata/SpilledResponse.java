@@ -0,0 +1,59 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * A reference to a response spilled to a sidecar file of its recording (see the spill response threshold of {@link TestDataForRecording}).
+ *
+ * @author Morten Meiling Olsen
+ */
+final class SpilledResponse implements StoredResponse {
+
+    private final Path pathToFile;
+    private final TestDataHandler testDataHandler;
+
+    SpilledResponse(Path pathToFile, TestDataHandler testDataHandler) {
+        this.pathToFile = pathToFile;
+        this.testDataHandler = testDataHandler;
+    }
+
+    /**
+     * Writes the serialized response (see {@link SharedResponseStore#serialize(Object)}) to the file, compressed if the file is named as a compressed file.
+     */
+    static void write(Path pathToFile, byte[] serializedResponse, TestDataHandler testDataHandler) throws IOException {
+        try (OutputStream outputStream = TestDataFiles.openForWriting(pathToFile)) {
+            testDataHandler.writeHeader(outputStream);
+            outputStream.write(serializedResponse);
+        }
+    }
+
+    @Override
+    public <T> T read(Class<T> responseClass) {
+        try {
+            return read(TestDataFiles.openForReading(pathToFile), responseClass, testDataHandler, pathToFile);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error reading spilled response: " + pathToFile, e);
+        }
+    }
+
+    /**
+     * Reads the response written by {@link #write(Path, byte[], TestDataHandler)} from the given stream, which is closed afterwards.
+     */
+    static <T> T read(InputStream inputStream, Class<T> responseClass, TestDataHandler testDataHandler, Path pathToFile) throws IOException {
+        try (RecordIterator responses = TestDataFiles.readRecords(inputStream, testDataHandler)) {
+            if (!responses.hasNext()) {
+                throw new IllegalStateException("No response in: " + pathToFile);
+            }
+            return responses.next(responseClass, testDataHandler);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Response in: " + pathToFile;
+    }
+}
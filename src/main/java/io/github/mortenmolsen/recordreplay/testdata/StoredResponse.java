@@ -0,0 +1,15 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+/**
+ * A reference to a response stored in a file of its own, set as the response of a record when it is replayed. The response is only read when the call is replayed, see
+ * {@link Record#bindResponse(Class, TestDataHandler)}.
+ *
+ * @author Morten Meiling Olsen
+ */
+interface StoredResponse {
+
+    /**
+     * Reads the response, binding it directly to the given class.
+     */
+    <T> T read(Class<T> responseClass);
+}
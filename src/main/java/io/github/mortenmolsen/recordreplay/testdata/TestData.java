@@ -1,5 +1,9 @@
 package io.github.mortenmolsen.recordreplay.testdata;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -10,10 +14,23 @@ import lombok.Setter;
  */
 public abstract class TestData {
 
+    /**
+     * The extension of the directory holding the responses spilled from a recording, which is named after the recording.
+     */
+    public static final String SPILLED_RESPONSES_EXTENSION = ".responses";
+
     @Getter
     @Setter
     protected TestDataHandler testDataHandler;
 
+    /**
+     * Whether recorded files are compressed. Compressed files are named with the {@link TestDataFiles#COMPRESSED_EXTENSION}. Both compressed and uncompressed files
+     * can always be replayed, no matter this setting.
+     */
+    @Getter
+    @Setter
+    protected boolean compressed = false;
+
     protected String fileName;
 
     @Getter
@@ -31,4 +48,37 @@ public abstract class TestData {
      * Called after a test to allow final stuff to be done with the data (record).
      */
     public abstract void finish();
+
+    /**
+     * @return the directory holding the responses spilled from the recording of the current test (no matter if the recording is compressed or not).
+     */
+    protected Path getPathToSpilledResponses() {
+        return Paths.get(pathToTestData, fileName + SPILLED_RESPONSES_EXTENSION);
+    }
+
+    protected SharedResponseStore getSharedResponseStore() {
+        return new SharedResponseStore(Paths.get(pathToTestData), testDataHandler);
+    }
+
+    /**
+     * @return the path of the file for the current test, either the compressed or the uncompressed one.
+     */
+    protected Path getPathToFile(boolean compressedFile) {
+        return Paths.get(pathToTestData, compressedFile ? fileName + TestDataFiles.COMPRESSED_EXTENSION : fileName);
+    }
+
+    /**
+     * @return the path of the existing file for the current test, preferring the uncompressed file if both exist. If neither exists, the path of the uncompressed file
+     * is returned.
+     */
+    protected Path getPathToExistingFile() {
+        Path uncompressedFile = getPathToFile(false);
+        if (!Files.exists(uncompressedFile)) {
+            Path compressedFile = getPathToFile(true);
+            if (Files.exists(compressedFile)) {
+                return compressedFile;
+            }
+        }
+        return uncompressedFile;
+    }
 }
@@ -0,0 +1,136 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens test data files for reading and writing, transparently handling compressed files.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class TestDataFiles {
+
+    /**
+     * The extension added to the name of compressed files.
+     */
+    public static final String COMPRESSED_EXTENSION = ".gz";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TestDataFiles() {
+    }
+
+    /**
+     * Opens the file for reading. Whether the file is compressed is detected from its first bytes (not its name), and compressed files are decompressed as they are read.
+     */
+    public static InputStream openForReading(Path pathToFile) throws IOException {
+        return decompressIfNeeded(Files.newInputStream(pathToFile));
+    }
+
+    /**
+     * Wraps the given stream in a decompressing stream, if the data in it is compressed.
+     */
+    public static InputStream decompressIfNeeded(InputStream inputStream) throws IOException {
+        InputStream bufferedInputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        try {
+            bufferedInputStream.mark(2);
+            int first = bufferedInputStream.read();
+            int second = bufferedInputStream.read();
+            bufferedInputStream.reset();
+            if (first == (GZIPInputStream.GZIP_MAGIC & 0xff) && second == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+                return new BufferedInputStream(new TruncatedDataTolerantInputStream(new GZIPInputStream(bufferedInputStream, BUFFER_SIZE)), BUFFER_SIZE);
+            }
+            return bufferedInputStream;
+        }
+        catch (IOException | RuntimeException e) {
+            bufferedInputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the header and then the records from the given stream, which is closed along with the returned iterator (or right away if the header cannot be read).
+     */
+    public static RecordIterator readRecords(InputStream inputStream, TestDataHandler testDataHandler) throws IOException {
+        try {
+            testDataHandler.readHeader(inputStream);
+            return testDataHandler.readRecords(inputStream);
+        }
+        catch (IOException | RuntimeException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the file for writing, replacing any existing file. Files with the {@link #COMPRESSED_EXTENSION} are compressed.
+     * Flushing a compressing stream also flushes the data compressed so far, so every flushed record can be read back even if the file is never closed.
+     */
+    public static OutputStream openForWriting(Path pathToFile) throws IOException {
+        return openForWriting(pathToFile, isCompressed(pathToFile));
+    }
+
+    /**
+     * Opens the file for writing, replacing any existing file, compressing it or not no matter its name - like for a temporary file that is later renamed.
+     */
+    public static OutputStream openForWriting(Path pathToFile, boolean compress) throws IOException {
+        OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(pathToFile), BUFFER_SIZE);
+        if (compress) {
+            try {
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE, true);
+            }
+            catch (IOException | RuntimeException e) {
+                outputStream.close();
+                throw e;
+            }
+        }
+        return outputStream;
+    }
+
+    /**
+     * @return whether the file is named as a compressed file.
+     */
+    public static boolean isCompressed(Path pathToFile) {
+        return pathToFile.getFileName().toString().endsWith(COMPRESSED_EXTENSION);
+    }
+
+    /**
+     * A compressed file that was never closed (an interrupted recording) ends without the compression trailer, which makes the decompressing stream throw once all the
+     * data has been read. This stream reports the end of the data instead, leaving it to the {@link TestDataHandler} to deal with the truncated records.
+     */
+    private static final class TruncatedDataTolerantInputStream extends FilterInputStream {
+
+        private TruncatedDataTolerantInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            }
+            catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            }
+            catch (EOFException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -1,55 +1,454 @@
 package io.github.mortenmolsen.recordreplay.testdata;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.Synchronized;
 
 /**
  * The test data collected during recording.
+ * Records are appended to the file while the test runs, so they never pile up in memory, and an interrupted recording still leaves the records written so far on disk.
+ * With {@link #writeBehind} the records are instead written by the {@link RecordingWriteBehind} in the background.
  *
  * @author Morten Meiling Olsen
  */
 public class TestDataForRecording extends TestData {
 
-    private final List<Object> recordsToWrite = new ArrayList<>();
+    /**
+     * The recording of the current test, started when the first record is written.
+     */
+    private @Nullable Recording recording;
+
+    /**
+     * The most recently added record of each call stream (see {@link Record#getCallStream()}). It is held back until the next record of the call stream is added (or the
+     * test finishes), since messages received as a result of the call are added to the record after it has been added here.
+     */
+    private final Map<String, PendingRecord> pendingRecords = new HashMap<>();
+
+    /**
+     * The records not yet written, in the order they were added. A record is only written once it, and all records added before it, are no longer held back - either as
+     * the most recently added record of its call stream, or by {@link #holdRecord(Object)}.
+     */
+    private final Deque<PendingRecord> unwrittenRecords = new ArrayDeque<>();
+
+    /**
+     * Responses whose serialized form is at least this size (in bytes) are stored in the {@link SharedResponseStore} instead of in the record, so that identical responses
+     * recorded by different tests are only stored once. By default all responses are stored in the records.
+     */
+    @Setter
+    private int sharedResponseThreshold = Integer.MAX_VALUE;
+
+    /**
+     * Responses whose serialized form is at least this size (in bytes) are spilled to a sidecar file next to the recording (see
+     * {@link TestData#SPILLED_RESPONSES_EXTENSION}), so that they are only read if the call is actually replayed. Responses stored in the {@link SharedResponseStore}
+     * are not spilled. By default no responses are spilled.
+     */
+    @Setter
+    private int spillResponseThreshold = Integer.MAX_VALUE;
+
+    /**
+     * Whether records are serialized and written in the background (see {@link RecordingWriteBehind}), so that a test does not wait for its recording to be written.
+     * The records are then written to a temporary file that is moved in place when the recording is complete, and records (including their responses) must not be
+     * modified once the next record is added. By default records are written by the test itself.
+     */
+    @Setter
+    private boolean writeBehind = false;
 
     public TestDataForRecording(String pathToTestData) {
         super(pathToTestData);
     }
 
+    /**
+     * Starts the recording of a test. A recording left unfinished by the previous test (see {@link #finish()}) is abandoned, just like an interrupted recording.
+     */
     @Synchronized
     @SneakyThrows(IOException.class)
     @Override
-    public void finish() {
-        // save the data in a file
-        Path pathToFile = Paths.get(pathToTestData, fileName);
-
-        if (Files.exists(pathToFile)) {
-            Files.delete(pathToFile);
+    public void init(String testClassName, String testMethodName) {
+        unwrittenRecords.clear();
+        pendingRecords.clear();
+        if (recording != null) {
+            Recording abandonedRecording = recording;
+            recording = null;
+            write(abandonedRecording, abandonedRecording::abandon);
         }
+        super.init(testClassName, testMethodName);
+    }
 
-        // first write NUL char to make git recognise file as binary
-        Files.write(pathToFile, new byte[]{0});
-        Files.write(pathToFile, testDataHandler.serialize(recordsToWrite), StandardOpenOption.APPEND);
+    /**
+     * Writes the records not yet written and completes the recording. If a record cannot be written, the recording is abandoned, so the next test starts a recording of
+     * its own either way.
+     *
+     * @throws IllegalStateException if a record is still held back by {@link #holdRecord(Object)}, since its messages are still being collected - the recording is then
+     * abandoned rather than written without them.
+     */
+    @Synchronized
+    @SneakyThrows(IOException.class)
+    @Override
+    public void finish() {
+        // make sure the file is written even if nothing has been recorded
+        Recording finishedRecording = getRecording();
+        recording = null;
+        try {
+            if (unwrittenRecords.stream().anyMatch(pendingRecord -> pendingRecord.held)) {
+                throw new IllegalStateException("The test ended while messages were still being collected in the background, wait for them to be collected before the test "
+                        + "ends (see TestCallManager#waitForAsync).");
+            }
+            for (PendingRecord pendingRecord : unwrittenRecords) {
+                write(finishedRecording, () -> finishedRecording.write(pendingRecord.record));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            try {
+                write(finishedRecording, finishedRecording::abandon);
+            }
+            catch (IOException | RuntimeException abandonFailure) {
+                e.addSuppressed(abandonFailure);
+            }
+            throw e;
+        }
+        finally {
+            unwrittenRecords.clear();
+            pendingRecords.clear();
+        }
+        write(finishedRecording, finishedRecording::finish);
     }
 
+    /**
+     * @return whether there is a recording for the current test, either in a file of its own or in the {@link TestDataPack}.
+     */
     @Synchronized
+    @SneakyThrows(IOException.class)
     public boolean recordFileExists() {
-        return Files.exists(Paths.get(pathToTestData, fileName));
+        if (Files.exists(getPathToExistingFile())) {
+            return true;
+        }
+        TestDataPack pack = TestDataPack.get(Paths.get(pathToTestData));
+        return pack != null && (pack.contains(getPathToFile(false).getFileName().toString()) || pack.contains(getPathToFile(true).getFileName().toString()));
     }
 
     /**
      * Can be called by anyone from the outside to add a record to those that will be stored.
      */
     @Synchronized
+    @SneakyThrows(IOException.class)
     public void addRecord(Object record) {
-        recordsToWrite.add(record);
+        PendingRecord pendingRecord = new PendingRecord(record);
+        PendingRecord previousRecord = pendingRecords.put(getCallStream(record), pendingRecord);
+        if (previousRecord != null) {
+            previousRecord.heldBack = false;
+        }
+        unwrittenRecords.addLast(pendingRecord);
+        writeRecordsNoLongerHeldBack();
+    }
+
+    /**
+     * Adds a record that is held back until {@link #releaseRecord(Object)} is called with it, like the record of messages collected in the background. The records added
+     * after it are held back as well, so the records are still written in the order they were added.
+     */
+    @Synchronized
+    public void holdRecord(Object record) {
+        PendingRecord pendingRecord = new PendingRecord(record);
+        pendingRecord.held = true;
+        unwrittenRecords.addLast(pendingRecord);
+    }
+
+    /**
+     * Releases a record held back by {@link #holdRecord(Object)}.
+     */
+    @Synchronized
+    @SneakyThrows(IOException.class)
+    public void releaseRecord(Object record) {
+        for (PendingRecord pendingRecord : unwrittenRecords) {
+            if (pendingRecord.record == record) {
+                pendingRecord.held = false;
+                pendingRecord.heldBack = false;
+            }
+        }
+        writeRecordsNoLongerHeldBack();
+    }
+
+    private void writeRecordsNoLongerHeldBack() throws IOException {
+        while (!unwrittenRecords.isEmpty() && !unwrittenRecords.peekFirst().heldBack) {
+            writeRecord(unwrittenRecords.removeFirst().record);
+        }
+    }
+
+    private static @Nullable String getCallStream(Object record) {
+        return record instanceof Record ? ((Record<?>) record).getCallStream() : null;
+    }
+
+    private void writeRecord(Object record) throws IOException {
+        Recording currentRecording = getRecording();
+        write(currentRecording, () -> currentRecording.write(record));
+    }
+
+    private void write(Recording recording, RecordingWriteBehind.Write write) throws IOException {
+        if (writeBehind) {
+            RecordingWriteBehind.submit(recording.pathToFile.toString(), write);
+        }
+        else {
+            write.write();
+        }
+    }
+
+    private Recording getRecording() {
+        if (recording == null) {
+            recording = new Recording(getPathToFile(compressed), getPathToFile(!compressed), writeBehind, testDataHandler, getSharedResponseStore(), sharedResponseThreshold,
+                    getPathToSpilledResponses(), spillResponseThreshold);
+        }
+        return recording;
+    }
+
+    /**
+     * A record that has been added, but not yet written.
+     */
+    private static final class PendingRecord {
+
+        private final Object record;
+        private boolean heldBack = true;
+
+        /**
+         * Whether the record is held back by {@link #holdRecord(Object)}, rather than by being the most recent record of its call stream.
+         */
+        private boolean held = false;
+
+        private PendingRecord(Object record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Writes the records of a single recording. Everything needed is captured when the recording is started, since the records might be written in the background
+     * while the next test is recording.
+     */
+    private static final class Recording {
+
+        private final Path pathToFile;
+
+        /**
+         * The file in the other format (compressed or not), which is removed so that it will not be replayed instead of the new one.
+         */
+        private final Path pathToOtherFile;
+
+        /**
+         * Whether the records are written to a temporary file, which is moved in place when the recording is finished.
+         */
+        private final boolean atomic;
+
+        private final TestDataHandler testDataHandler;
+        private final SharedResponseStore sharedResponseStore;
+        private final int sharedResponseThreshold;
+        private final Path pathToSpilledResponses;
+        private final int spillResponseThreshold;
+
+        /**
+         * The names of the responses spilled by this recording - any other files in the directory are left over from an earlier recording.
+         */
+        private final Set<String> spilledResponses = new HashSet<>();
+
+        /**
+         * If the recording is written to a temporary file, the responses are spilled to this temporary directory, which replaces the directory of spilled responses when the
+         * recording is finished.
+         */
+        private @Nullable Path temporarySpilledResponses;
+        private int numberOfRecords = 0;
+
+        private @Nullable Path temporaryFile;
+        private @Nullable RecordWriter recordWriter;
+        private boolean failed = false;
+
+        private Recording(Path pathToFile, Path pathToOtherFile, boolean atomic, TestDataHandler testDataHandler, SharedResponseStore sharedResponseStore,
+                          int sharedResponseThreshold, Path pathToSpilledResponses, int spillResponseThreshold) {
+            this.pathToFile = pathToFile;
+            this.pathToOtherFile = pathToOtherFile;
+            this.atomic = atomic;
+            this.testDataHandler = testDataHandler;
+            this.sharedResponseStore = sharedResponseStore;
+            this.sharedResponseThreshold = sharedResponseThreshold;
+            this.pathToSpilledResponses = pathToSpilledResponses;
+            this.spillResponseThreshold = spillResponseThreshold;
+        }
+
+        private void write(Object record) throws IOException {
+            try {
+                if (record instanceof Record) {
+                    moveResponseIfLarge((Record<?>) record);
+                }
+                getRecordWriter().write(record);
+                numberOfRecords++;
+            }
+            catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        private void finish() throws IOException {
+            try {
+                // without a temporary file, the records written so far are already in place, just like when the recording is interrupted
+                if (atomic && failed) {
+                    throw new IOException("The recording is incomplete, since writing one of its records failed: " + pathToFile);
+                }
+                RecordWriter writer = getRecordWriter();
+                recordWriter = null;
+                writer.close();
+                if (temporaryFile != null) {
+                    // the spilled responses are moved in place right before the records referring to them
+                    deleteDirectory(pathToSpilledResponses);
+                    if (temporarySpilledResponses != null) {
+                        Files.move(temporarySpilledResponses, pathToSpilledResponses);
+                        temporarySpilledResponses = null;
+                    }
+                    try {
+                        Files.move(temporaryFile, pathToFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temporaryFile, pathToFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    Files.deleteIfExists(pathToOtherFile);
+                }
+                else {
+                    deleteOldSpilledResponses();
+                }
+            }
+            finally {
+                if (recordWriter != null) {
+                    recordWriter.close();
+                }
+                if (temporaryFile != null) {
+                    Files.deleteIfExists(temporaryFile);
+                }
+                if (temporarySpilledResponses != null) {
+                    deleteDirectory(temporarySpilledResponses);
+                }
+            }
+        }
+
+        /**
+         * Closes the recording without completing it: the records written so far are left in the file, like when the recording is interrupted, while a recording written
+         * to a temporary file is discarded.
+         */
+        private void abandon() throws IOException {
+            try {
+                if (recordWriter != null) {
+                    RecordWriter writer = recordWriter;
+                    recordWriter = null;
+                    writer.close();
+                }
+            }
+            finally {
+                if (temporaryFile != null) {
+                    Files.deleteIfExists(temporaryFile);
+                }
+                if (temporarySpilledResponses != null) {
+                    deleteDirectory(temporarySpilledResponses);
+                }
+            }
+        }
+
+        /**
+         * Moves the response out of the record if it is large, either to the {@link SharedResponseStore} or to a sidecar file.
+         */
+        private void moveResponseIfLarge(Record<?> record) throws IOException {
+            if (record.getResponse() != null && Math.min(sharedResponseThreshold, spillResponseThreshold) < Integer.MAX_VALUE) {
+                // a response left in the record is written in its buffered form, so it is only serialized once
+                Object bufferedResponse = testDataHandler.buffer(record.getResponse());
+                byte[] serializedResponse = sharedResponseStore.serialize(bufferedResponse);
+                if (serializedResponse.length < Math.min(sharedResponseThreshold, spillResponseThreshold)) {
+                    record.setResponse(bufferedResponse);
+                }
+                else if (serializedResponse.length >= sharedResponseThreshold) {
+                    record.setSharedResponseHash(sharedResponseStore.store(serializedResponse));
+                    record.setResponse(null);
+                }
+                else if (serializedResponse.length >= spillResponseThreshold) {
+                    // named after the record, and compressed if the recording is
+                    String spilledResponse = numberOfRecords + testDataHandler.getExtension()
+                            + (TestDataFiles.isCompressed(pathToFile) ? TestDataFiles.COMPRESSED_EXTENSION : "");
+                    SpilledResponse.write(getSpilledResponsesDirectory().resolve(spilledResponse), serializedResponse, testDataHandler);
+                    spilledResponses.add(spilledResponse);
+                    record.setSpilledResponse(spilledResponse);
+                    record.setResponse(null);
+                }
+            }
+        }
+
+        private Path getSpilledResponsesDirectory() throws IOException {
+            if (!atomic) {
+                Files.createDirectories(pathToSpilledResponses);
+                return pathToSpilledResponses;
+            }
+            if (temporarySpilledResponses == null) {
+                temporarySpilledResponses = Files.createTempDirectory(pathToSpilledResponses.toAbsolutePath().getParent(), pathToSpilledResponses.getFileName().toString());
+            }
+            return temporarySpilledResponses;
+        }
+
+        private static void deleteDirectory(Path directory) throws IOException {
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(directory);
+            }
+        }
+
+        private void deleteOldSpilledResponses() throws IOException {
+            if (Files.isDirectory(pathToSpilledResponses)) {
+                try (Stream<Path> files = Files.list(pathToSpilledResponses)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (!spilledResponses.contains(file.getFileName().toString())) {
+                            Files.delete(file);
+                        }
+                    }
+                }
+                if (spilledResponses.isEmpty()) {
+                    Files.delete(pathToSpilledResponses);
+                }
+            }
+        }
+
+        private RecordWriter getRecordWriter() throws IOException {
+            if (recordWriter == null) {
+                Path pathToWrittenFile;
+                if (atomic) {
+                    temporaryFile = Files.createTempFile(pathToFile.toAbsolutePath().getParent(), pathToFile.getFileName().toString(), ".tmp");
+                    pathToWrittenFile = temporaryFile;
+                }
+                else {
+                    Files.deleteIfExists(pathToOtherFile);
+                    pathToWrittenFile = pathToFile;
+                }
+                OutputStream outputStream = TestDataFiles.openForWriting(pathToWrittenFile, TestDataFiles.isCompressed(pathToFile));
+                try {
+                    testDataHandler.writeHeader(outputStream);
+                    recordWriter = testDataHandler.writeRecords(outputStream);
+                }
+                catch (IOException | RuntimeException e) {
+                    outputStream.close();
+                    throw e;
+                }
+            }
+            return recordWriter;
+        }
     }
-}
\ No newline at end of file
+}
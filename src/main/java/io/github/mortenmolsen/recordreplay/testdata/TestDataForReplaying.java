@@ -2,9 +2,13 @@ package io.github.mortenmolsen.recordreplay.testdata;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.nio.file.StandardOpenOption;
 
 import javax.annotation.Nullable;
 
@@ -13,12 +17,32 @@ import lombok.Setter;
 
 /**
  * The data replayed during a test.
+ * The records are read from the file as they are consumed, so only the record currently being replayed needs to be held in memory. Large files can also be memory mapped,
+ * see {@link #memoryMappingThreshold}.
+ * If there is no file for a test, its recording is read from the {@link TestDataPack} of the test data directory, if there is one.
+ * Recordings that are not memory mapped may be served from the JVM wide {@link RecordCache}.
  *
  * @author Morten Meiling Olsen
  */
 public class TestDataForReplaying extends TestData {
 
-    protected final LinkedList<Object> records = new LinkedList<>();
+    /**
+     * The records not yet consumed. Open from {@link #init(String, String)} until {@link #finish()}.
+     */
+    protected @Nullable RecordIterator records;
+
+    /**
+     * The file the records are read from, which is either compressed or not.
+     */
+    private @Nullable Path pathToFile;
+
+    /**
+     * Uncompressed files of at least this size (in bytes) are memory mapped, and their records decoded directly from the mapping, if the {@link TestDataHandler} is able to
+     * index the records (see {@link TestDataHandler#indexRecords(InputStream)}). The operating system then shares the mapped pages between all JVMs replaying the file.
+     * The index of the records is stored in a sidecar file ({@link RecordIndex#EXTENSION}) next to the recording. By default no files are memory mapped.
+     */
+    @Setter
+    private long memoryMappingThreshold = Long.MAX_VALUE;
 
     /**
      * If conversion of old record is desired, this converter must be set.
@@ -34,40 +58,151 @@ public class TestDataForReplaying extends TestData {
     @Override
     public void init(String testClassName, String testMethodName) {
         super.init(testClassName, testMethodName);
+        closeRecords();
         try {
-            try(InputStream inputStream = Files.newInputStream(Paths.get(pathToTestData, fileName))) {
-                // first read the single NUL char written during recording to fool git into classifying the file as binary
-                //noinspection ResultOfMethodCallIgnored
-                inputStream.read();
-                records.addAll(testDataHandler.deserialize(inputStream));
+            pathToFile = getPathToExistingFile();
+            if (Files.exists(pathToFile)) {
+                if (shouldMemoryMap(pathToFile)) {
+                    records = readMappedRecords(pathToFile);
+                }
+                if (records == null) {
+                    Path pathToRecording = pathToFile;
+                    records = readRecords(pathToRecording.toAbsolutePath().toString(), Files.size(pathToRecording),
+                            Files.getLastModifiedTime(pathToRecording).toMillis(), () -> TestDataFiles.openForReading(pathToRecording));
+                }
+            }
+            else {
+                // no loose file, so the recording might be in the pack
+                records = readPackedRecords();
             }
         }
-        catch (IOException e) {
+        catch (NoSuchFileException e) {
             throw new RuntimeException("Error loading file: " + fileName + ". Most likely you need to record data first.");
         }
+        catch (IOException e) {
+            throw new RuntimeException("Error loading file: " + fileName, e);
+        }
+    }
+
+    /**
+     * Reads the records of the given recording from the {@link RecordCache}, if it is (or can be) cached, or directly from the stream otherwise.
+     */
+    private RecordIterator readRecords(String source, long size, long lastModified, RecordCache.RecordingOpener opener) throws IOException {
+        // converted records are written back to the file, so they must be read from the file and never from the cache
+        if (converter == null) {
+            RecordIterator cachedRecords = RecordCache.read(source, size, lastModified, opener, testDataHandler);
+            if (cachedRecords != null) {
+                return cachedRecords;
+            }
+        }
+        return TestDataFiles.readRecords(opener.open(), testDataHandler);
     }
 
+    /**
+     * Reads the recording from the {@link TestDataPack} of the test data directory.
+     *
+     * @throws NoSuchFileException if there is no pack or the recording is not in it.
+     */
+    private RecordIterator readPackedRecords() throws IOException {
+        TestDataPack pack = TestDataPack.get(Paths.get(pathToTestData));
+        if (pack != null) {
+            for (boolean compressedFile : new boolean[]{false, true}) {
+                String entryName = getPathToFile(compressedFile).getFileName().toString();
+                if (pack.contains(entryName)) {
+                    //noinspection ConstantConditions
+                    return readRecords(Paths.get(pathToTestData, TestDataPack.FILE_NAME).toAbsolutePath() + "!" + entryName, pack.getSize(), pack.getLastModified(),
+                            () -> TestDataFiles.decompressIfNeeded(pack.openEntry(entryName)));
+                }
+            }
+        }
+        throw new NoSuchFileException(pathToFile != null ? pathToFile.toString() : fileName);
+    }
+
+    private boolean shouldMemoryMap(Path pathToFile) throws IOException {
+        // a converter rewrites the file, which it should not do while the file is mapped
+        return converter == null
+                && !TestDataFiles.isCompressed(pathToFile)
+                && Files.size(pathToFile) >= memoryMappingThreshold
+                && Files.size(pathToFile) <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the records of the mapped file, or null if the records of the file cannot be indexed.
+     */
+    private @Nullable RecordIterator readMappedRecords(Path pathToFile) throws IOException {
+        MappedByteBuffer file;
+        try (FileChannel fileChannel = FileChannel.open(pathToFile, StandardOpenOption.READ)) {
+            file = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+        RecordIndex index = RecordIndex.load(pathToFile, file, testDataHandler);
+        return index != null ? new MappedRecordIterator(file, index, testDataHandler) : null;
+    }
+
+    /**
+     * @throws IllegalStateException if there are no more records because the recording was interrupted, so that a test is never replayed against part of a recording.
+     */
     public boolean hasData() {
-        return !records.isEmpty();
+        if (records == null) {
+            return false;
+        }
+        if (!records.hasNext()) {
+            if (records.isTruncated()) {
+                throw new IllegalStateException("The recording: " + fileName + " ends unexpectedly, most likely because the recording was interrupted. Record the test "
+                        + "data again.");
+            }
+            return false;
+        }
+        return true;
     }
 
     /**
      * Retrieves a record. The record must be of the given class, or the conversion will fail.
+     * Only the consumed record is parsed, the remaining records stay in the file until they are needed.
      */
     public <K> K consumeFirstRecord(Class<K> expectedClass) {
-        Object objectToConvert = records.removeFirst();
+        if (!hasData()) {
+            throw new IllegalStateException("No more records in: " + fileName);
+        }
+        K record;
         if (converter != null) {
             // if an old format converter is in effect, we need to let it do its magic first
-            objectToConvert = converter.convert(objectToConvert, expectedClass);
+            //noinspection ConstantConditions
+            record = testDataHandler.convertValue(converter.convert(records.next(), expectedClass), expectedClass);
+        }
+        else {
+            //noinspection ConstantConditions
+            record = records.next(expectedClass, testDataHandler);
         }
-        return testDataHandler.convertValue(objectToConvert, expectedClass);
+        if (record instanceof Record && ((Record<?>) record).getSharedResponseHash() != null) {
+            Record<?> recordWithSharedResponse = (Record<?>) record;
+            recordWithSharedResponse.setResponse(getSharedResponseStore().read(recordWithSharedResponse.getSharedResponseHash()));
+        }
+        if (record instanceof Record && ((Record<?>) record).getSpilledResponse() != null) {
+            Record<?> recordWithSpilledResponse = (Record<?>) record;
+            // only a reference, the response is read if the call is actually replayed
+            recordWithSpilledResponse.setResponse(new SpilledResponse(getPathToSpilledResponses().resolve(recordWithSpilledResponse.getSpilledResponse()), testDataHandler));
+        }
+        return record;
     }
 
     @Override
     public void finish() {
+        closeRecords();
         // if a converter is in effect, make it write the converted records
-        if (converter != null) {
-            converter.record(fileName);
+        if (converter != null && pathToFile != null) {
+            converter.record(pathToFile.getFileName().toString());
+        }
+    }
+
+    private void closeRecords() {
+        if (records != null) {
+            try {
+                records.close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error closing file: " + fileName, e);
+            }
+            records = null;
         }
     }
 }
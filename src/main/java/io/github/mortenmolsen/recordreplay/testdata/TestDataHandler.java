@@ -2,8 +2,12 @@ package io.github.mortenmolsen.recordreplay.testdata;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * How to handle test data, ie. write, read etc.
  *
@@ -11,10 +15,102 @@ import java.util.List;
  */
 public interface TestDataHandler {
 
+    /**
+     * Writes the header identifying the format of the file. By default this is a single NUL char, which makes git recognise the file as binary.
+     */
+    default void writeHeader(OutputStream outputStream) throws IOException {
+        outputStream.write(0);
+    }
+
+    /**
+     * Reads the header written by {@link #writeHeader(OutputStream)}, leaving the stream positioned at the first byte of the records.
+     * By default the NUL char is skipped if present, so files without it (e.g. edited by hand) can still be read. This requires a stream supporting mark - from other
+     * streams the first byte is always skipped.
+     *
+     * @throws IOException if the header is not the one expected by this handler.
+     */
+    default void readHeader(InputStream inputStream) throws IOException {
+        if (!inputStream.markSupported()) {
+            inputStream.read();
+            return;
+        }
+        inputStream.mark(1);
+        if (inputStream.read() != 0) {
+            inputStream.reset();
+        }
+    }
+
     byte[] serialize(List<Object> objects) throws IOException;
 
+    /**
+     * @return the given value in a form that is serialized without going through the value again, like the buffered tokens of its serialized form - so a value that has
+     * to be serialized more than once is only gone through once. By default the value itself.
+     */
+    default Object buffer(Object value) throws IOException {
+        return value;
+    }
+
     List<Object> deserialize(InputStream inputStream) throws IOException;
 
+    /**
+     * Reads the records from the given stream one at a time, as they are consumed. The stream is owned by the returned iterator and closed along with it.
+     * By default all records are read up front - handlers should override this if they are able to read records lazily.
+     */
+    default RecordIterator readRecords(InputStream inputStream) throws IOException {
+        try (InputStream toClose = inputStream) {
+            return RecordIterator.of(deserialize(toClose));
+        }
+    }
+
+    /**
+     * Opens a writer appending records to the given stream. The stream is owned by the returned writer and closed along with it.
+     * By default the records are kept in memory and serialized when the writer is closed - handlers should override this if they are able to write records one at a time.
+     */
+    default RecordWriter writeRecords(OutputStream outputStream) throws IOException {
+        List<Object> records = new ArrayList<>();
+        return new RecordWriter() {
+            @Override
+            public void write(Object record) throws IOException {
+                records.add(record);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try (OutputStream toClose = outputStream) {
+                    toClose.write(serialize(records));
+                }
+            }
+        };
+    }
+
+    /**
+     * Finds the boundaries of the records in the given stream (positioned after the header), which makes it possible to read the records individually with
+     * {@link #readRecord(InputStream)}. By default records cannot be indexed.
+     *
+     * @return the start and end offset (exclusive) of each record, relative to the start of the stream, one after the other - or null if the records of this format
+     * (or of this stream, like an interrupted recording) cannot be read individually.
+     */
+    default @Nullable long[] indexRecords(InputStream inputStream) throws IOException {
+        return null;
+    }
+
+    /**
+     * Reads a single record from a stream holding exactly the bytes of one of the records found by {@link #indexRecords(InputStream)}. Only called if the handler
+     * indexes the records, so by default the record is read as if the stream held all the records - handlers indexing their records should override this.
+     */
+    default Object readRecord(InputStream inputStream) throws IOException {
+        try (RecordIterator records = readRecords(inputStream)) {
+            return records.next();
+        }
+    }
+
+    /**
+     * Reads a single record as the given class, see {@link #readRecord(InputStream)}. By default the record is read in its generic form and then converted.
+     */
+    default <T> T readRecord(InputStream inputStream, Class<T> recordClass) throws IOException {
+        return convertValue(readRecord(inputStream), recordClass);
+    }
+
     <T> T convertValue(Object value, Class<T> newClass);
 
     String getExtension();
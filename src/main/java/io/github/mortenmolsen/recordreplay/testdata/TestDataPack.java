@@ -0,0 +1,229 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import io.github.mortenmolsen.recordreplay.RecordReplayConfigurer;
+
+/**
+ * A single file holding all the recordings of a test data directory. Replaying thousands of tests from one (memory mapped) file avoids opening a file per test.
+ * <p>
+ * The pack starts with an index of the recordings, by file name, followed by the recordings themselves, copied as-is (so a compressed recording stays compressed).
+ * The {@link TestDataForReplaying} reads a recording from the pack if there is no loose file for it, which means that re-recorded tests override the pack until it is
+ * rebuilt.
+ * <p>
+ * The pack is built by running this class with the path to the test data directory as argument, followed by the {@link RecordReplayConfigurer} class of the project if
+ * it does not record in the default (JSON) format. Only the files of the format are packed.
+ *
+ * @author Morten Meiling Olsen
+ */
+public final class TestDataPack {
+
+    /**
+     * The name of the pack file in the test data directory.
+     */
+    public static final String FILE_NAME = "recordings.pack";
+
+    private static final int MAGIC = 0x5252504b;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The packs opened so far, by their path. Packs are shared by all tests in the JVM.
+     */
+    private static final Map<Path, TestDataPack> OPENED_PACKS = new ConcurrentHashMap<>();
+
+    private final long size;
+    private final long lastModified;
+    private final ByteBuffer pack;
+
+    /**
+     * The offset and length of each recording, by file name.
+     */
+    private final Map<String, long[]> entries;
+
+    private TestDataPack(long size, long lastModified, ByteBuffer pack, Map<String, long[]> entries) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.pack = pack;
+        this.entries = entries;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: " + TestDataPack.class.getName() + " <path to test data> [<configurer class>]");
+            System.exit(1);
+        }
+        TestDataHandler testDataHandler = args.length == 2
+                ? ((RecordReplayConfigurer<?>) Class.forName(args[1]).newInstance()).createTestDataHandler()
+                : new ObjectMapperTestDataHandler(new ObjectMapper());
+        Path pathToPack = write(Paths.get(args[0]), testDataHandler);
+        System.out.println("Wrote: " + pathToPack + " (" + Files.size(pathToPack) + " bytes)");
+    }
+
+    /**
+     * @return the pack in the given test data directory, or null if there is none.
+     */
+    static @Nullable TestDataPack get(Path pathToTestData) throws IOException {
+        Path pathToPack = pathToTestData.resolve(FILE_NAME);
+        if (!Files.exists(pathToPack)) {
+            return null;
+        }
+        long size = Files.size(pathToPack);
+        long lastModified = Files.getLastModifiedTime(pathToPack).toMillis();
+        TestDataPack pack = OPENED_PACKS.get(pathToPack);
+        if (pack == null || pack.size != size || pack.lastModified != lastModified) {
+            pack = open(pathToPack, size, lastModified);
+            OPENED_PACKS.put(pathToPack, pack);
+        }
+        return pack;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    boolean contains(String fileName) {
+        return entries.containsKey(fileName);
+    }
+
+    /**
+     * @return the recording with the given file name, or null if it is not in the pack.
+     */
+    @Nullable InputStream openEntry(String fileName) {
+        long[] entry = entries.get(fileName);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer recording = pack.duplicate();
+        recording.limit((int) (entry[0] + entry[1]));
+        recording.position((int) entry[0]);
+        return new ByteBufferBackedInputStream(recording.slice());
+    }
+
+    private static TestDataPack open(Path pathToPack, long size, long lastModified) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Packs larger than 2GB cannot be mapped: " + pathToPack);
+        }
+        MappedByteBuffer pack;
+        try (FileChannel fileChannel = FileChannel.open(pathToPack, StandardOpenOption.READ)) {
+            pack = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        DataInputStream index = new DataInputStream(new ByteBufferBackedInputStream(pack.duplicate()));
+        if (index.readInt() != MAGIC) {
+            throw new IOException("Not a test data pack: " + pathToPack);
+        }
+        int version = index.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported test data pack version: " + version + ", expected version: " + FORMAT_VERSION);
+        }
+        int numEntries = index.readInt();
+        Map<String, long[]> entries = new HashMap<>(numEntries * 2);
+        for (int i = 0; i < numEntries; i++) {
+            entries.put(index.readUTF(), new long[]{index.readLong(), index.readLong()});
+        }
+        return new TestDataPack(size, lastModified, pack, entries);
+    }
+
+    /**
+     * Packs all the recordings in the given directory written by the given handler (compressed or not), replacing any existing pack.
+     *
+     * @return the path of the pack.
+     */
+    public static Path write(Path pathToTestData, TestDataHandler testDataHandler) throws IOException {
+        List<Path> recordings = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(pathToTestData, path -> isRecording(path, testDataHandler))) {
+            files.forEach(recordings::add);
+        }
+        recordings.sort(null);
+
+        // the index holds the offsets of the recordings, so its size must be known before they can be calculated
+        long indexSize = 3 * Integer.BYTES;
+        for (Path recording : recordings) {
+            indexSize += utfLength(recording.getFileName().toString()) + 2 * Long.BYTES;
+        }
+
+        Path pathToPack = pathToTestData.resolve(FILE_NAME);
+        Path temporaryFile = Files.createTempFile(pathToTestData, FILE_NAME, ".tmp");
+        try {
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                outputStream.writeInt(MAGIC);
+                outputStream.writeInt(FORMAT_VERSION);
+                outputStream.writeInt(recordings.size());
+                long offset = indexSize;
+                for (Path recording : recordings) {
+                    long length = Files.size(recording);
+                    outputStream.writeUTF(recording.getFileName().toString());
+                    outputStream.writeLong(offset);
+                    outputStream.writeLong(length);
+                    offset += length;
+                }
+                for (Path recording : recordings) {
+                    Files.copy(recording, (OutputStream) outputStream);
+                }
+            }
+            try {
+                Files.move(temporaryFile, pathToPack, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, pathToPack, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        return pathToPack;
+    }
+
+    private static boolean isRecording(Path path, TestDataHandler testDataHandler) {
+        String fileName = path.getFileName().toString();
+        return Files.isRegularFile(path)
+                && (fileName.endsWith(testDataHandler.getExtension()) || fileName.endsWith(testDataHandler.getExtension() + TestDataFiles.COMPRESSED_EXTENSION));
+    }
+
+    /**
+     * @return the number of bytes {@link DataOutputStream#writeUTF(String)} writes for the given string.
+     */
+    private static int utfLength(String string) {
+        int length = 2;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length += 1;
+            }
+            else if (c > 0x07ff) {
+                length += 3;
+            }
+            else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
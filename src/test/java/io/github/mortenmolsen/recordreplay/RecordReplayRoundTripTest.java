@@ -0,0 +1,327 @@
+package io.github.mortenmolsen.recordreplay;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.calls.ExpectedCall;
+import io.github.mortenmolsen.recordreplay.messages.MessageCollector;
+import io.github.mortenmolsen.recordreplay.messages.MessageIdentifier;
+import io.github.mortenmolsen.recordreplay.messages.NoOpMessageSender;
+import io.github.mortenmolsen.recordreplay.messages.TestMessage;
+import io.github.mortenmolsen.recordreplay.messages.WaitingInput;
+import io.github.mortenmolsen.recordreplay.testdata.ArgumentStringGenerator;
+import io.github.mortenmolsen.recordreplay.testdata.ObjectMapperTestDataHandler;
+import io.github.mortenmolsen.recordreplay.testdata.Record;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForRecording;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForReplaying;
+
+/**
+ * Records calls made through a {@link RecordingTestCallManager} to a temporary directory and replays them through a {@link ReplayingTestCallManager}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class RecordReplayRoundTripTest {
+
+    private static final String TEST_CLASS = "RoundTrip";
+
+    public interface Service {
+
+        String get(String key);
+
+        String getDefault();
+
+        /**
+         * @return the number of times the key has been requested, so the response differs between calls with the same request.
+         */
+        String getVersion(String key);
+    }
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        TestCallManager.setCallStreamKey(null);
+    }
+
+    @Test
+    public void concurrentCallStreamsReplayed() throws Exception {
+        TestDataForRecording recordingTestData = createTestDataForRecording("concurrent");
+        RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(recordingTestData, new MessageCollector<>());
+        recordingManager.setConcurrent(true);
+        List<String> recordedResponses = makeCallsInStreams(recordingManager, recordingManager.createRRMock(Service.class));
+        recordingTestData.finish();
+        recordingManager.validateAfterTest();
+
+        TestDataForReplaying replayingTestData = createTestDataForReplaying("concurrent");
+        ReplayingTestCallManager<TestMessage> replayingManager = createReplayingManager(replayingTestData);
+        replayingManager.setConcurrent(true);
+        List<String> replayedResponses = makeCallsInStreams(replayingManager, replayingManager.createRRMock(Service.class));
+        replayingManager.validateAfterTest();
+        replayingTestData.finish();
+
+        Assert.assertEquals(recordedResponses, replayedResponses);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void callStreamKeyRequiredInConcurrentMode() {
+        RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(createTestDataForRecording("unbound"), new MessageCollector<>());
+        recordingManager.setConcurrent(true);
+
+        recordingManager.expectCall(new ExpectedCall<>("get", String.class));
+    }
+
+    @Test
+    public void argsOfCallWithoutArgumentsEmpty() {
+        TestDataForRecording testData = createTestDataForRecording("withoutArguments");
+        RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(testData, new MessageCollector<>());
+        Service service = recordingManager.createRRMock(Service.class);
+
+        recordingManager.expectCall(new ExpectedCall<>("getDefault", String.class));
+        Assert.assertEquals("default value", service.getDefault());
+        testData.finish();
+
+        Assert.assertEquals(Collections.emptyList(), recordingManager.getArgsOfLastCall());
+    }
+
+    @Test
+    public void overlappingAsyncWaitsReplayed() throws Exception {
+        TestDataForRecording recordingTestData = createTestDataForRecording("asyncWaits");
+        MessageCollector<TestMessage> messageCollector = new MessageCollector<>();
+        messageCollector.start();
+        List<List<String>> recordedMessages;
+        String recordedResponse;
+        try {
+            RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(recordingTestData, messageCollector);
+            Service service = recordingManager.createRRMock(Service.class);
+            CompletableFuture<List<TestMessage>> firstWait = recordingManager.waitForAsync(createWaitingInput(2, "a"));
+            CompletableFuture<List<TestMessage>> secondWait = recordingManager.waitForAsync(createWaitingInput(1, "b"));
+            // the call is recorded while the messages of both waits are still coming in, so the records of the waits are held back
+            recordingManager.expectCall(new ExpectedCall<>("get", String.class));
+            recordedResponse = service.get("key");
+            messageCollector.messageReceived(new TestMessage("b1"));
+            messageCollector.messageReceived(new TestMessage("a1"));
+            messageCollector.messageReceived(new TestMessage("a2"));
+            recordingManager.validateAfterTest();
+            recordedMessages = Arrays.asList(texts(firstWait.get()), texts(secondWait.get()));
+            recordingTestData.finish();
+        }
+        finally {
+            messageCollector.stop();
+        }
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a1", "a2"), Collections.singletonList("b1")), recordedMessages);
+
+        TestDataForReplaying replayingTestData = createTestDataForReplaying("asyncWaits");
+        ReplayingTestCallManager<TestMessage> replayingManager = createReplayingManager(replayingTestData);
+        Service service = replayingManager.createRRMock(Service.class);
+        CompletableFuture<List<TestMessage>> firstWait = replayingManager.waitForAsync(createWaitingInput(2, "a"));
+        CompletableFuture<List<TestMessage>> secondWait = replayingManager.waitForAsync(createWaitingInput(1, "b"));
+        replayingManager.expectCall(new ExpectedCall<>("get", String.class));
+        String replayedResponse = service.get("key");
+        replayingManager.validateAfterTest();
+        replayingTestData.finish();
+
+        Assert.assertEquals(recordedResponse, replayedResponse);
+        Assert.assertEquals(recordedMessages, Arrays.asList(texts(firstWait.get()), texts(secondWait.get())));
+    }
+
+    @Test
+    public void recordingNotFinishedWhileMessagesCollected() {
+        TestDataForRecording testData = createTestDataForRecording("collecting");
+        MessageCollector<TestMessage> messageCollector = new MessageCollector<>();
+        messageCollector.start();
+        try {
+            RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(testData, messageCollector);
+            recordingManager.waitForAsync(createWaitingInput(1, "a"));
+            try {
+                testData.finish();
+                Assert.fail("The recording should not be finished while messages are being collected for it");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertFalse(Files.exists(temporaryFolder.getRoot().toPath().resolve(TEST_CLASS + "_collecting.json")));
+        }
+        finally {
+            messageCollector.stop();
+        }
+    }
+
+    @Test
+    public void unorderedCallsReplayed() {
+        TestDataForRecording recordingTestData = createTestDataForRecording("unordered");
+        RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(recordingTestData, new MessageCollector<>());
+        Service recordingService = recordingManager.createRRMock(Service.class);
+        recordingManager.expectCall(new ExpectedCall<>("get", String.class));
+        recordingService.get("a");
+        recordingManager.expectCall(new ExpectedCall<>("get", String.class));
+        recordingService.get("b");
+        for (int i = 0; i < 2; i++) {
+            recordingManager.expectCall(new ExpectedCall<>("getVersion", String.class));
+            recordingService.getVersion("c");
+        }
+        recordingTestData.finish();
+
+        TestDataForReplaying replayingTestData = createTestDataForReplaying("unordered");
+        ReplayingTestCallManager<TestMessage> replayingManager = createReplayingManager(replayingTestData);
+        replayingManager.setUnordered(true);
+        Service replayingService = replayingManager.createRRMock(Service.class);
+        List<String> responses = new ArrayList<>();
+        replayingManager.expectCall(new ExpectedCall<>("getVersion", String.class));
+        responses.add(replayingService.getVersion("c"));
+        replayingManager.expectCall(new ExpectedCall<>("get", String.class));
+        responses.add(replayingService.get("b"));
+        // calls with the same request are replayed in the order they were recorded in
+        replayingManager.expectCall(new ExpectedCall<>("getVersion", String.class));
+        responses.add(replayingService.getVersion("c"));
+        replayingManager.expectCall(new ExpectedCall<>("get", String.class));
+        responses.add(replayingService.get("a"));
+        replayingManager.validateAfterTest();
+        replayingTestData.finish();
+
+        Assert.assertEquals(Arrays.asList("version 1 of c", "value of b", "version 2 of c", "value of a"), responses);
+    }
+
+    @Test
+    public void unorderedCallsNotReplayedReported() {
+        TestDataForRecording recordingTestData = createTestDataForRecording("notReplayed");
+        RecordingTestCallManager<TestMessage> recordingManager = createRecordingManager(recordingTestData, new MessageCollector<>());
+        Service recordingService = recordingManager.createRRMock(Service.class);
+        for (String key : Arrays.asList("a", "b", "c")) {
+            recordingManager.expectCall(new ExpectedCall<>("get", String.class));
+            recordingService.get(key);
+        }
+        recordingTestData.finish();
+
+        TestDataForReplaying replayingTestData = createTestDataForReplaying("notReplayed");
+        ReplayingTestCallManager<TestMessage> replayingManager = createReplayingManager(replayingTestData);
+        replayingManager.setUnordered(true);
+        Service replayingService = replayingManager.createRRMock(Service.class);
+        replayingManager.expectCall(new ExpectedCall<>("get", String.class));
+        Assert.assertEquals("value of b", replayingService.get("b"));
+        try {
+            // the record of a is read ahead while looking for the record of b, the record of c is never read
+            replayingManager.validateAfterTest();
+            Assert.fail("The calls never replayed should be reported");
+        }
+        catch (IllegalStateException e) {
+            String recordsNotReplayed = e.getMessage().substring("Some recorded calls were not made: ".length());
+            Assert.assertEquals(2, recordsNotReplayed.split(", ").length);
+        }
+        finally {
+            replayingTestData.finish();
+        }
+    }
+
+    private static WaitingInput<TestMessage> createWaitingInput(int requiredMessages, String prefix) {
+        return new WaitingInput<>(5, new TestMessage.Identifier(requiredMessages, MessageIdentifier.Mode.EXACT, prefix));
+    }
+
+    private static List<String> texts(List<TestMessage> messages) {
+        return messages.stream().map(TestMessage::getMessageObject).collect(Collectors.toList());
+    }
+
+    /**
+     * Makes the calls of two call streams from the threads of a pool, so the calls of the streams are interleaved differently from run to run.
+     *
+     * @return the responses of the calls of each stream, one stream after the other.
+     */
+    private List<String> makeCallsInStreams(TestCallManager<TestMessage> testCallManager, Service service) throws Exception {
+        List<Future<List<String>>> responsesOfStreams = new ArrayList<>();
+        for (String callStreamKey : Arrays.asList("a", "b")) {
+            responsesOfStreams.add(executor.submit(() -> {
+                TestCallManager.setCallStreamKey(callStreamKey);
+                try {
+                    List<String> responses = new ArrayList<>();
+                    for (int i = 0; i < 20; i++) {
+                        testCallManager.expectCall(new ExpectedCall<>("get", String.class));
+                        responses.add(service.get(callStreamKey + i));
+                    }
+                    return responses;
+                }
+                finally {
+                    TestCallManager.setCallStreamKey(null);
+                }
+            }));
+        }
+        List<String> responses = new ArrayList<>();
+        for (Future<List<String>> responsesOfStream : responsesOfStreams) {
+            responses.addAll(responsesOfStream.get());
+        }
+        return responses;
+    }
+
+    private TestDataForRecording createTestDataForRecording(String testMethod) {
+        TestDataForRecording testData = new TestDataForRecording(temporaryFolder.getRoot().getPath());
+        testData.setTestDataHandler(new ObjectMapperTestDataHandler(new ObjectMapper()));
+        testData.init(TEST_CLASS, testMethod);
+        return testData;
+    }
+
+    private TestDataForReplaying createTestDataForReplaying(String testMethod) {
+        TestDataForReplaying testData = new TestDataForReplaying(temporaryFolder.getRoot().getPath());
+        testData.setTestDataHandler(new ObjectMapperTestDataHandler(new ObjectMapper()));
+        testData.init(TEST_CLASS, testMethod);
+        return testData;
+    }
+
+    private static RecordingTestCallManager<TestMessage> createRecordingManager(TestDataForRecording testData, MessageCollector<TestMessage> messageCollector) {
+        RecordingTestCallManager<TestMessage> testCallManager = new RecordingTestCallManager<>(TestRecord.class, messageCollector, testData, new ArgumentStringGenerator(),
+                new NoOpMessageSender<>());
+        testCallManager.registerRealInstance(new RealService());
+        return testCallManager;
+    }
+
+    private static ReplayingTestCallManager<TestMessage> createReplayingManager(TestDataForReplaying testData) {
+        return new ReplayingTestCallManager<>(TestRecord.class, testData, new ObjectMapper(), new ArgumentStringGenerator(), new NoOpMessageSender<>());
+    }
+
+    public static class TestRecord extends Record<TestMessage> {
+    }
+
+    private static class RealService implements Service {
+
+        private final Map<String, Integer> versions = new HashMap<>();
+
+        @Override
+        public String get(String key) {
+            return "value of " + key;
+        }
+
+        @Override
+        public String getDefault() {
+            return "default value";
+        }
+
+        @Override
+        public synchronized String getVersion(String key) {
+            return "version " + versions.merge(key, 1, Integer::sum) + " of " + key;
+        }
+    }
+}
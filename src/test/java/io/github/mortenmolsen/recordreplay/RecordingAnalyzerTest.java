@@ -0,0 +1,130 @@
+package io.github.mortenmolsen.recordreplay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.github.mortenmolsen.recordreplay.testdata.Record;
+import io.github.mortenmolsen.recordreplay.testdata.SharedResponseStore;
+import io.github.mortenmolsen.recordreplay.testdata.TestData;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataFiles;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForRecording;
+import io.github.mortenmolsen.recordreplay.testsystem.rr.PoCMessage;
+import io.github.mortenmolsen.recordreplay.testsystem.rr.PoCRecord;
+
+/**
+ * @author Morten Meiling Olsen
+ */
+public class RecordingAnalyzerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path pathToData;
+    private RecordReplayConfigurer<PoCMessage> configurer;
+
+    @Before
+    public void setUp() {
+        pathToData = temporaryFolder.getRoot().toPath();
+        configurer = new RecordReplayConfigurer<PoCMessage>() {
+            @Override
+            public String getPathToData() {
+                return pathToData.toString();
+            }
+
+            @Override
+            public Class<? extends Record<PoCMessage>> getRecordClass() {
+                return PoCRecord.class;
+            }
+
+            @Override
+            protected void configureTestData(TestData testData) {
+                // the test data handler of the configurer is used
+            }
+        };
+    }
+
+    @Test
+    public void recordingsAnalyzed() throws IOException {
+        record("A", "first", false, 3);
+        record("B", "second", true, 2);
+
+        List<RecordingAnalyzer.RecordingReport> reports = new RecordingAnalyzer<>(configurer).analyze();
+
+        Assert.assertEquals(Arrays.asList("A_first.json:3", "B_second.json.gz:2"), describe(reports));
+        for (RecordingAnalyzer.RecordingReport report : reports) {
+            Assert.assertNull(report.getFailure());
+            Assert.assertEquals(Files.size(pathToData.resolve(report.getRecording())), report.getSize());
+        }
+    }
+
+    @Test
+    public void compressedCopyOfRecordingNotAnalyzedTwice() throws IOException {
+        record("A", "first", false, 3);
+        // a compressed copy of the same recording, the uncompressed file is the one replayed
+        try (OutputStream outputStream = TestDataFiles.openForWriting(pathToData.resolve("A_first.json.gz"))) {
+            Files.copy(pathToData.resolve("A_first.json"), outputStream);
+        }
+
+        List<RecordingAnalyzer.RecordingReport> reports = new RecordingAnalyzer<>(configurer).analyze();
+
+        Assert.assertEquals(Arrays.asList("A_first.json:3"), describe(reports));
+    }
+
+    @Test
+    public void sharedResponseSizedByItsFile() throws IOException {
+        TestDataForRecording testData = new TestDataForRecording(pathToData.toString());
+        testData.setTestDataHandler(configurer.createTestDataHandler());
+        testData.setSharedResponseThreshold(100);
+        testData.init("S", "shared");
+        PoCRecord record = new PoCRecord();
+        record.setRequest("getPosts");
+        record.setResponse(Collections.nCopies(50, "post"));
+        testData.addRecord(record);
+        testData.finish();
+        List<Path> sharedResponses;
+        try (Stream<Path> files = Files.list(pathToData.resolve(SharedResponseStore.DIRECTORY))) {
+            sharedResponses = files.collect(Collectors.toList());
+        }
+        Assert.assertEquals(1, sharedResponses.size());
+
+        List<RecordingAnalyzer.RecordingReport> reports = new RecordingAnalyzer<>(configurer).analyze();
+
+        Assert.assertEquals(Arrays.asList("S_shared.json:1"), describe(reports));
+        Assert.assertNull(reports.get(0).getFailure());
+        Assert.assertEquals(Files.size(sharedResponses.get(0)), reports.get(0).getLargestResponses().get(0).getSize());
+    }
+
+    private void record(String testClass, String testMethod, boolean compressed, int records) {
+        TestDataForRecording testData = new TestDataForRecording(pathToData.toString());
+        testData.setTestDataHandler(configurer.createTestDataHandler());
+        testData.setCompressed(compressed);
+        testData.init(testClass, testMethod);
+        for (int i = 0; i < records; i++) {
+            PoCRecord record = new PoCRecord();
+            record.setRequest("getPost: " + i);
+            record.setResponse("post " + i);
+            testData.addRecord(record);
+        }
+        testData.finish();
+    }
+
+    private static List<String> describe(List<RecordingAnalyzer.RecordingReport> reports) {
+        return reports.stream()
+                .map(report -> report.getRecording() + ":" + report.getRecords())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
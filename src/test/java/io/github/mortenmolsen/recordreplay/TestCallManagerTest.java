@@ -0,0 +1,152 @@
+package io.github.mortenmolsen.recordreplay;
+
+import io.github.mortenmolsen.recordreplay.calls.ExpectedCall;
+import io.github.mortenmolsen.recordreplay.calls.WildcardCall;
+import io.github.mortenmolsen.recordreplay.messages.Message;
+import io.github.mortenmolsen.recordreplay.messages.WaitingInput;
+import io.github.mortenmolsen.recordreplay.testdata.ArgumentStringGenerator;
+import io.github.mortenmolsen.recordreplay.testdata.CallRequest;
+import io.github.mortenmolsen.recordreplay.testdata.Record;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the matching of calls against the expected calls in the {@link TestCallManager}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class TestCallManagerTest {
+
+    public interface Connection {
+
+        String poll();
+
+        String get();
+    }
+
+    private Method poll;
+    private Method get;
+    private TestCallManager<Message> testCallManager;
+
+    @Before
+    public void setUp() throws Exception {
+        poll = Connection.class.getMethod("poll");
+        get = Connection.class.getMethod("get");
+        testCallManager = new ReturningTestCallManager();
+    }
+
+    @Test
+    public void wildcardCallRepeatedUntilNextExpectedCall() throws Throwable {
+        testCallManager.expectCall(new ExpectedCall<>("get", String.class));
+        testCallManager.expectCall(new WildcardCall<>("poll", String.class));
+
+        for (int i = 0; i < 1000; i++) {
+            testCallManager.call(Connection.class, poll, null, String.class);
+        }
+        testCallManager.call(Connection.class, get, null, String.class);
+
+        testCallManager.validateAfterTest();
+    }
+
+    @Test
+    public void wildcardCallNotMade() throws Throwable {
+        testCallManager.expectCall(new ExpectedCall<>("get", String.class));
+        testCallManager.expectCall(new WildcardCall<>("poll", String.class));
+
+        testCallManager.call(Connection.class, get, null, String.class);
+
+        testCallManager.validateAfterTest();
+    }
+
+    @Test
+    public void wildcardCallRepeatedAtMostMaxRepetitions() throws Throwable {
+        testCallManager.expectCall(new ExpectedCall<>("get", String.class));
+        testCallManager.expectCall(new WildcardCall<>("poll", String.class, 3));
+        for (int i = 0; i < 3; i++) {
+            testCallManager.call(Connection.class, poll, null, String.class);
+        }
+
+        try {
+            testCallManager.call(Connection.class, poll, null, String.class);
+            fail("A fourth call was accepted");
+        }
+        catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("poll"));
+        }
+    }
+
+    @Test
+    public void wildcardCallNotRepeatedAfterNextExpectedCall() throws Throwable {
+        testCallManager.expectCall(new ExpectedCall<>("get", String.class));
+        testCallManager.expectCall(new WildcardCall<>("poll", String.class));
+        testCallManager.call(Connection.class, poll, null, String.class);
+        testCallManager.call(Connection.class, get, null, String.class);
+
+        try {
+            testCallManager.call(Connection.class, poll, null, String.class);
+            fail("The wildcard call was repeated after the next expected call");
+        }
+        catch (AssertionError e) {
+            assertEquals("Call made to: poll, but no call is expected.", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardCallWithoutRepetitionsRejected() {
+        new WildcardCall<>("poll", String.class, 0);
+    }
+
+    /**
+     * Returns the same response to every call, without recording or replaying anything.
+     */
+    private static class ReturningTestCallManager extends TestCallManager<Message> {
+
+        private ReturningTestCallManager() {
+            super(null, new ArgumentStringGenerator(), null);
+        }
+
+        @Override
+        public void init(Method testMethod) {
+        }
+
+        @Override
+        protected <Q> Q doSimpleCall(Callable<Q> callable, Class<Q> expectedReturnValueClass, Record<Message> record) {
+            return null;
+        }
+
+        @Override
+        protected List<Message> collectMessages(WaitingInput<Message> waitingInput, Record<Message> record) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected Record<Message> getRecord(CallRequest request) {
+            return null;
+        }
+
+        @Override
+        protected Object doCall(Class invokedOn, Method method, Object[] args, Record<Message> record) {
+            return "response";
+        }
+
+        @Override
+        protected List<Message> getMessagesByWaitingFor(WaitingInput<Message> input) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected CompletableFuture<List<Message>> getMessagesByWaitingForAsync(WaitingInput<Message> input) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.mortenmolsen.recordreplay.conversion;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.testdata.ObjectMapperTestDataHandler;
+import io.github.mortenmolsen.recordreplay.testdata.TestData;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForRecording;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataForReplaying;
+import io.github.mortenmolsen.recordreplay.testdata.TestDataHandler;
+import io.github.mortenmolsen.recordreplay.testsystem.rr.PoCRecord;
+
+/**
+ * @author Morten Meiling Olsen
+ */
+public class FormatMigrationTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path pathToData;
+    private TestDataHandler testDataHandler;
+
+    @Before
+    public void setUp() {
+        pathToData = temporaryFolder.getRoot().toPath();
+        testDataHandler = new ObjectMapperTestDataHandler(new ObjectMapper());
+    }
+
+    @Test
+    public void recordingsConverted() throws IOException, InterruptedException {
+        record("A", "plain", false, "getPost: 1", "getPost: 2", "getPost: 3");
+        record("B", "compressed", true, "getPost: 1", "getPost: 2");
+        record("C", "failing", false, "getPost: 1", "fail", "getPost: 3");
+        byte[] failingRecording = Files.readAllBytes(pathToData.resolve("C_failing.json"));
+
+        List<FormatMigration.Result> results = new FormatMigration(pathToData, testDataHandler, PoCRecord.class, UpperCaseConverter::new).run(2);
+
+        Assert.assertEquals(Arrays.asList("A_plain.json:3", "B_compressed.json.gz:2", "C_failing.json:1"),
+                results.stream().map(result -> result.getPathToFile().getFileName() + ":" + result.getNumberOfRecords()).collect(Collectors.toList()));
+        Assert.assertNull(results.get(0).getFailure());
+        Assert.assertNull(results.get(1).getFailure());
+        Assert.assertTrue(String.valueOf(results.get(2).getFailure()), results.get(2).getFailure() instanceof IllegalStateException);
+
+        Assert.assertEquals(Arrays.asList("GETPOST: 1", "GETPOST: 2", "GETPOST: 3"), replayRequests("A", "plain"));
+        Assert.assertEquals(Arrays.asList("GETPOST: 1", "GETPOST: 2"), replayRequests("B", "compressed"));
+        Assert.assertTrue(isGzipped(pathToData.resolve("B_compressed.json.gz")));
+        // the failing recording is left as it was
+        Assert.assertArrayEquals(failingRecording, Files.readAllBytes(pathToData.resolve("C_failing.json")));
+        try (Stream<Path> files = Files.list(pathToData)) {
+            Assert.assertEquals(3, files.count());
+        }
+    }
+
+    private void record(String testClass, String testMethod, boolean compressed, String... requests) {
+        TestDataForRecording testData = new TestDataForRecording(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        testData.setCompressed(compressed);
+        testData.init(testClass, testMethod);
+        for (String request : requests) {
+            PoCRecord record = new PoCRecord();
+            record.setRequest(request);
+            record.setResponse(Collections.singletonList("response of " + request));
+            testData.addRecord(record);
+        }
+        testData.finish();
+    }
+
+    private List<String> replayRequests(String testClass, String testMethod) {
+        TestDataForReplaying testData = new TestDataForReplaying(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        testData.init(testClass, testMethod);
+        List<String> requests = new ArrayList<>();
+        try {
+            while (testData.hasData()) {
+                requests.add(testData.consumeFirstRecord(PoCRecord.class).getRequest());
+            }
+        }
+        finally {
+            testData.finish();
+        }
+        return requests;
+    }
+
+    private static boolean isGzipped(Path pathToFile) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(pathToFile)) {
+            return inputStream.read() == (GZIPInputStream.GZIP_MAGIC & 0xff) && inputStream.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+        }
+    }
+
+    /**
+     * Writes the requests in upper case, failing at the request "fail".
+     */
+    private static class UpperCaseConverter extends OldFormatConverter {
+
+        private UpperCaseConverter(TestData testData) {
+            super(testData);
+        }
+
+        @Override
+        protected Object doConvert(Object old, Class expectedClassOfObject) {
+            //noinspection unchecked
+            Map<String, Object> record = (Map<String, Object>) old;
+            String request = (String) record.get("request");
+            if (request.equals("fail")) {
+                throw new IllegalStateException("Cannot convert: " + request);
+            }
+            record.put("request", request.toUpperCase());
+            return record;
+        }
+    }
+}
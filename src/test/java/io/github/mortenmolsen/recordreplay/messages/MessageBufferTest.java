@@ -0,0 +1,86 @@
+package io.github.mortenmolsen.recordreplay.messages;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the {@link MessageBuffer}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class MessageBufferTest {
+
+    private static final int MESSAGES = 200_000;
+
+    @Test
+    public void appendAndGet() {
+        MessageBuffer<Integer> buffer = new MessageBuffer<>();
+        for (int i = 0; i < 1000; i++) {
+            buffer.add(i);
+        }
+        assertEquals(1000, buffer.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) buffer.get(i));
+        }
+    }
+
+    @Test
+    public void snapshotNotAffectedByLaterAppends() {
+        MessageBuffer<Integer> buffer = new MessageBuffer<>();
+        for (int i = 0; i < 300; i++) {
+            buffer.add(i);
+        }
+        List<Integer> snapshot = buffer.snapshot();
+        for (int i = 300; i < 5000; i++) {
+            buffer.add(i);
+        }
+        assertEquals(300, snapshot.size());
+        assertEquals(299, (int) snapshot.get(299));
+        assertEquals(5000, buffer.size());
+    }
+
+    @Test
+    public void snapshotUnderConcurrentAppend() throws Exception {
+        MessageBuffer<Integer> buffer = new MessageBuffer<>();
+        AtomicReference<String> error = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                int lastSize = 0;
+                while (lastSize < MESSAGES && error.get() == null) {
+                    List<Integer> snapshot = buffer.snapshot();
+                    int size = snapshot.size();
+                    if (size < lastSize) {
+                        error.set("Snapshot shrank from " + lastSize + " to " + size);
+                    }
+                    // every message in the snapshot must be visible, also in chunks added while taking it
+                    for (int i = lastSize; i < size; i++) {
+                        Integer message = snapshot.get(i);
+                        if (message == null || message != i) {
+                            error.set("Message " + i + " was " + message);
+                            break;
+                        }
+                    }
+                    lastSize = size;
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = 0; i < MESSAGES; i++) {
+            buffer.add(i);
+        }
+        for (Thread reader : readers) {
+            reader.join(10000);
+        }
+
+        assertNull(error.get());
+        assertEquals(MESSAGES, buffer.size());
+    }
+}
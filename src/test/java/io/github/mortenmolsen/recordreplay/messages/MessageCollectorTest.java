@@ -0,0 +1,207 @@
+package io.github.mortenmolsen.recordreplay.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the collecting of messages by the {@link MessageCollector}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class MessageCollectorTest {
+
+    private MessageCollector<TestMessage> messageCollector;
+
+    @Before
+    public void setUp() {
+        messageCollector = new MessageCollector<>();
+        messageCollector.start();
+    }
+
+    @After
+    public void tearDown() {
+        messageCollector.stop();
+    }
+
+    @Test
+    public void unknownNumberOfMessagesReleasedAfterQuietPeriod() throws Exception {
+        WaitingInput<TestMessage> waitingInput = new WaitingInput<>(5, new TestMessage.Identifier(1, MessageIdentifier.Mode.AT_LEAST, "a")).quietPeriod(300);
+        messageCollector.startAccepting(waitingInput.getAcceptor());
+        long startedAt = System.nanoTime();
+        Thread sender = new Thread(() -> {
+            sendAfter(100, "a1");
+            sendAfter(100, "a2");
+        });
+        sender.start();
+
+        List<TestMessage> messages = messageCollector.getCollectedMessages();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertEquals(Arrays.asList("a1", "a2"), texts(messages));
+        // released one quiet period after the last message, not at the end of the waiting time
+        assertTrue("Released after " + waitedMs + " ms", waitedMs >= 500 && waitedMs < 2000);
+    }
+
+    @Test
+    public void noMessagesReleasedAfterQuietPeriod() {
+        WaitingInput<TestMessage> waitingInput = new WaitingInput<>(5, new TestMessage.Identifier(0, MessageIdentifier.Mode.AT_LEAST, "a")).quietPeriod(300);
+        messageCollector.startAccepting(waitingInput.getAcceptor());
+        long startedAt = System.nanoTime();
+
+        List<TestMessage> messages = messageCollector.getCollectedMessages();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertTrue(messages.isEmpty());
+        assertTrue("Released after " + waitedMs + " ms", waitedMs >= 250 && waitedMs < 2000);
+    }
+
+    @Test
+    public void exactNumberOfMessagesReleasedWithoutQuietPeriod() {
+        WaitingInput<TestMessage> waitingInput = new WaitingInput<>(5, new TestMessage.Identifier(2, MessageIdentifier.Mode.EXACT, "a"));
+        messageCollector.startAccepting(waitingInput.getAcceptor());
+        long startedAt = System.nanoTime();
+        messageCollector.messageReceived(new TestMessage("a1"));
+        messageCollector.messageReceived(new TestMessage("a2"));
+
+        List<TestMessage> messages = messageCollector.getCollectedMessages();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertEquals(Arrays.asList("a1", "a2"), texts(messages));
+        assertTrue("Released after " + waitedMs + " ms", waitedMs < WaitingInput.DEFAULT_QUIET_PERIOD_MS);
+    }
+
+    @Test
+    public void messagesFromSeveralProducersKeepTheirOrder() throws Exception {
+        int producers = 4;
+        int messagesPerProducer = 5000;
+        WaitingInput<TestMessage> waitingInput = new WaitingInput<>(10, new TestMessage.Identifier(producers * messagesPerProducer, MessageIdentifier.Mode.EXACT, "m"));
+        messageCollector.startAccepting(waitingInput.getAcceptor());
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < messagesPerProducer; i++) {
+                    messageCollector.messageReceived(new TestMessage("m" + producer + "-" + i));
+                }
+            }).start();
+        }
+
+        List<TestMessage> messages = messageCollector.getCollectedMessages();
+
+        assertEquals(producers * messagesPerProducer, messages.size());
+        int[] lastMessage = new int[producers];
+        Arrays.fill(lastMessage, -1);
+        for (TestMessage message : messages) {
+            String[] producerAndIndex = message.getMessageObject().substring(1).split("-");
+            int producer = Integer.parseInt(producerAndIndex[0]);
+            int index = Integer.parseInt(producerAndIndex[1]);
+            assertEquals("Message out of order: " + message, lastMessage[producer] + 1, index);
+            lastMessage[producer] = index;
+        }
+        assertEquals(producers * messagesPerProducer, messageCollector.getDispatchedMessages());
+        assertEquals(0, messageCollector.getQueueDepth());
+    }
+
+    @Test
+    public void unexpectedMessageFromOtherProducerReported() throws Exception {
+        WaitingInput<TestMessage> waitingInput = new WaitingInput<>(5, new TestMessage.Identifier(1, MessageIdentifier.Mode.AT_LEAST, "a")).quietPeriod(300);
+        messageCollector.startAccepting(waitingInput.getAcceptor());
+        Thread expectedProducer = new Thread(() -> messageCollector.messageReceived(new TestMessage("a1")));
+        Thread unexpectedProducer = new Thread(() -> messageCollector.messageReceived(new TestMessage("b1")));
+        expectedProducer.start();
+        unexpectedProducer.start();
+        expectedProducer.join();
+        unexpectedProducer.join();
+
+        try {
+            messageCollector.getCollectedMessages();
+            fail("The unexpected message was not reported");
+        }
+        catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("b1"));
+        }
+    }
+
+    @Test
+    public void messageReceivedBeforeAcceptingNotCollected() {
+        List<TestMessage> nonExpectedMessages = new CopyOnWriteArrayList<>();
+        messageCollector.setNonExpectedAcceptor(new MessageCollector.SimpleAcceptor<>(message -> nonExpectedMessages.add(message)));
+        messageCollector.messageReceived(new TestMessage("a0"));
+        WaitingInput<TestMessage> waitingInput = new WaitingInput<>(5, new TestMessage.Identifier(1, MessageIdentifier.Mode.EXACT, "a"));
+        messageCollector.startAccepting(waitingInput.getAcceptor());
+        messageCollector.messageReceived(new TestMessage("a1"));
+
+        List<TestMessage> messages = messageCollector.getCollectedMessages();
+
+        assertEquals(Arrays.asList("a1"), texts(messages));
+        assertEquals(Arrays.asList("a0"), texts(nonExpectedMessages));
+    }
+
+    @Test
+    public void messageReceivedAfterStopDropped() {
+        messageCollector.messageReceived(new TestMessage("a1"));
+        messageCollector.stop();
+        long dispatchedMessages = messageCollector.getDispatchedMessages();
+
+        messageCollector.messageReceived(new TestMessage("a2"));
+
+        assertEquals(1, dispatchedMessages);
+        assertEquals(dispatchedMessages, messageCollector.getDispatchedMessages());
+        assertEquals(0, Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("Message-Collector-Dispatcher-Thread-") && thread.isAlive())
+                .count());
+    }
+
+    @Test
+    public void concurrentAcceptorsWithPriorities() throws Exception {
+        MessageCollector.Acceptor<TestMessage> low = new WaitingInput<>(5, new TestMessage.Identifier(2, MessageIdentifier.Mode.AT_LEAST, "a"))
+                .quietPeriod(200)
+                .getAcceptor();
+        MessageCollector.Acceptor<TestMessage> high = new WaitingInput<>(5, new TestMessage.Identifier(1, MessageIdentifier.Mode.EXACT, "a"))
+                .priority(1)
+                .getAcceptor();
+        MessageCollector.Acceptor<TestMessage> other = new WaitingInput<>(5, new TestMessage.Identifier(2, MessageIdentifier.Mode.EXACT, "b")).getAcceptor();
+        messageCollector.startAccepting(low);
+        messageCollector.startAccepting(high);
+        messageCollector.startAccepting(other);
+        for (String text : new String[]{"a1", "b1", "a2", "a3", "b2"}) {
+            messageCollector.messageReceived(new TestMessage(text));
+        }
+
+        // the acceptors are waited for in another order than they were started
+        List<TestMessage> lowMessages = messageCollector.getCollectedMessages(low);
+        List<TestMessage> otherMessages = messageCollector.getCollectedMessages(other);
+        List<TestMessage> highMessages = messageCollector.getCollectedMessages(high);
+
+        // the acceptor with the highest priority gets the first message it accepts, the rest goes to the next acceptor accepting them
+        assertEquals(Arrays.asList("a1"), texts(highMessages));
+        assertEquals(Arrays.asList("a2", "a3"), texts(lowMessages));
+        assertEquals(Arrays.asList("b1", "b2"), texts(otherMessages));
+        assertNull(messageCollector.getErrorMessage());
+    }
+
+    private void sendAfter(long delayMs, String text) {
+        try {
+            Thread.sleep(delayMs);
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        messageCollector.messageReceived(new TestMessage(text));
+    }
+
+    private static List<String> texts(List<TestMessage> messages) {
+        return messages.stream().map(TestMessage::getMessageObject).collect(Collectors.toList());
+    }
+}
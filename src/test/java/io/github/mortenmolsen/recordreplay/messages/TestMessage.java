@@ -0,0 +1,43 @@
+package io.github.mortenmolsen.recordreplay.messages;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A simple message for the tests of the message handling, identified by its text.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class TestMessage extends Message<String> {
+
+    public TestMessage(@JsonProperty("messageObject") String text) {
+        super(text);
+    }
+
+    @Override
+    public String getShortDescription() {
+        return messageObject;
+    }
+
+    /**
+     * Identifies the test messages starting with a given prefix.
+     */
+    public static class Identifier extends MessageIdentifier<TestMessage> {
+
+        private final String prefix;
+
+        public Identifier(int requiredMessages, Mode mode, String prefix) {
+            super(requiredMessages, mode, message -> message.getMessageObject().startsWith(prefix));
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected String getIdentifier() {
+            return prefix;
+        }
+
+        @Override
+        protected String distinctIdentifier(TestMessage message) {
+            return message.getMessageObject();
+        }
+    }
+}
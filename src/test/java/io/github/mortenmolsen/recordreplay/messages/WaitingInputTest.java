@@ -0,0 +1,60 @@
+package io.github.mortenmolsen.recordreplay.messages;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the checking of received messages against a {@link WaitingInput}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class WaitingInputTest {
+
+    @Test
+    public void tallyAgreesWithCheckOfReceivedMessages() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            WaitingInput<TestMessage> waitingInput = new WaitingInput<>();
+            int identifiers = 1 + random.nextInt(3);
+            for (int j = 0; j < identifiers; j++) {
+                waitingInput.expect(new TestMessage.Identifier(random.nextInt(4), MessageIdentifier.Mode.values()[random.nextInt(MessageIdentifier.Mode.values().length)],
+                        randomLetter(random)));
+            }
+            WaitingInput.Tally<TestMessage> tally = waitingInput.newTally();
+            List<TestMessage> messages = new ArrayList<>();
+            for (int j = 0; j < 8; j++) {
+                TestMessage message = new TestMessage(randomLetter(random) + random.nextInt(3));
+                messages.add(message);
+                tally.add(message);
+                assertEquals("Expected " + waitingInput.messageIdentifiers + ", received " + messages,
+                        waitingInput.checkReceivedMessages(messages), tally.getResult());
+            }
+        }
+    }
+
+    @Test
+    public void tallyReportsIdentifiersNotOk() {
+        TestMessage.Identifier a = new TestMessage.Identifier(1, MessageIdentifier.Mode.EXACT, "a");
+        TestMessage.Identifier b = new TestMessage.Identifier(2, MessageIdentifier.Mode.DISTINCT, "b");
+        WaitingInput.Tally<TestMessage> tally = new WaitingInput<>(a, b).newTally();
+        tally.add(new TestMessage("a1"));
+        tally.add(new TestMessage("b1"));
+        tally.add(new TestMessage("b1"));
+
+        assertEquals(MessageIdentifier.MessageCheckResult.NOT_YET, tally.getResult());
+        assertEquals(Arrays.asList(b), tally.getIdentifiersNotOk());
+
+        tally.add(new TestMessage("a2"));
+        assertEquals(MessageIdentifier.MessageCheckResult.TOO_MANY, tally.getResult());
+    }
+
+    private static String randomLetter(Random random) {
+        return String.valueOf((char) ('a' + random.nextInt(3)));
+    }
+}
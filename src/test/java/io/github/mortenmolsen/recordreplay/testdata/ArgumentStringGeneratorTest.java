@@ -0,0 +1,94 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the argument strings and fingerprints generated by the {@link ArgumentStringGenerator}.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class ArgumentStringGeneratorTest {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private ArgumentStringGenerator argumentStringGenerator;
+
+    @Before
+    public void setUp() {
+        argumentStringGenerator = new ArgumentStringGenerator();
+        // numbers get their own string, except for the negative integers, which are left to the number generator
+        argumentStringGenerator.addGenerator(Number.class, arg -> "#" + arg);
+        argumentStringGenerator.addGenerator(Integer.class, arg -> (Integer) arg < 0 ? null : "int" + arg);
+    }
+
+    @Test
+    public void argumentString() {
+        assertEquals("a, int1, #-1, #2.5, null, [x]",
+                argumentStringGenerator.generateString(new Object[]{"a", 1, -1, 2.5, Instant.now(), null, Arrays.asList("x")}));
+    }
+
+    @Test
+    public void fingerprintOfArgumentString() {
+        assertFingerprintOfArgumentString();
+        assertFingerprintOfArgumentString("a");
+        assertFingerprintOfArgumentString("a", "b", "");
+        assertFingerprintOfArgumentString((Object) null);
+        assertFingerprintOfArgumentString(null, "a", null);
+        assertFingerprintOfArgumentString(Instant.now());
+        assertFingerprintOfArgumentString(Instant.now(), "a", Instant.now(), "b");
+        assertFingerprintOfArgumentString("a", Instant.now());
+        assertFingerprintOfArgumentString(1, -1, 2L, -2.5, "a");
+        assertFingerprintOfArgumentString(-1, null, Instant.now(), Arrays.asList(1, 2));
+    }
+
+    @Test
+    public void fingerprintOfRequest() {
+        Object[] args = {"a", 1, Instant.now(), null};
+        CallRequest request = CallRequest.of("get:", args, argumentStringGenerator);
+
+        assertEquals("get:a, int1, null", request.toString());
+        assertEquals(CallRequest.of(request.toString()).getFingerprint(), request.getFingerprint());
+    }
+
+    @Test
+    public void generatorAddedAfterUse() {
+        assertEquals("a", argumentStringGenerator.generateString(new Object[]{"a"}));
+
+        argumentStringGenerator.addGenerator(String.class, arg -> "'" + arg + "'");
+
+        assertEquals("'a'", argumentStringGenerator.generateString(new Object[]{"a"}));
+    }
+
+    @Test
+    public void generatorAddedWhileGenerating() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            AtomicBoolean done = new AtomicBoolean();
+            Thread generating = new Thread(() -> {
+                while (!done.get()) {
+                    argumentStringGenerator.generateString(new Object[]{"a"});
+                }
+            });
+            generating.start();
+            String prefix = "v" + i + ":";
+            argumentStringGenerator.addGenerator(String.class, arg -> prefix + arg);
+
+            // the generator added must be used once it has been added, even if the generators were looked up in the meantime
+            assertEquals(prefix + "a", argumentStringGenerator.generateString(new Object[]{"a"}));
+            done.set(true);
+            generating.join();
+        }
+    }
+
+    private void assertFingerprintOfArgumentString(Object... args) {
+        String argumentString = argumentStringGenerator.generateString(args);
+        assertEquals("Fingerprint of: " + argumentString, CallRequest.hash(FNV_OFFSET_BASIS, argumentString),
+                argumentStringGenerator.generateFingerprint(FNV_OFFSET_BASIS, args));
+    }
+}
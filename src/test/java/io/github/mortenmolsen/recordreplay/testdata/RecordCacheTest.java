@@ -0,0 +1,149 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.testsystem.rr.PoCRecord;
+
+/**
+ * Replays recordings through the {@link RecordCache}. Whether a recording is replayed from the cache is found by corrupting its file without changing its size and
+ * modification time, which only a cached recording survives.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class RecordCacheTest {
+
+    private static final String TEST_CLASS = "Cached";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path pathToData;
+    private TestDataHandler testDataHandler;
+
+    @Before
+    public void setUp() {
+        pathToData = temporaryFolder.getRoot().toPath();
+        testDataHandler = new ObjectMapperTestDataHandler(new ObjectMapper());
+    }
+
+    @After
+    public void tearDown() {
+        RecordCache.setBudget(0);
+    }
+
+    @Test
+    public void secondInitServedFromCache() throws IOException {
+        record("first", "response");
+        RecordCache.setBudget(1024 * 1024);
+        Assert.assertEquals(Arrays.asList("response 0", "response 1"), replay("first"));
+
+        corrupt("first");
+
+        Assert.assertEquals(Arrays.asList("response 0", "response 1"), replay("first"));
+    }
+
+    @Test
+    public void leastRecentlyUsedRecordingEvicted() throws IOException {
+        record("a", "a");
+        record("b", "b");
+        record("c", "c");
+        // room for two of the recordings
+        RecordCache.setBudget(Files.size(getPathToFile("a")) * 2 + 10);
+        replay("a");
+        replay("b");
+        // a is now used more recently than b, so b is evicted when c is cached
+        replay("a");
+        replay("c");
+
+        corrupt("a");
+        corrupt("b");
+        corrupt("c");
+
+        Assert.assertEquals(Arrays.asList("a 0", "a 1"), replay("a"));
+        Assert.assertEquals(Arrays.asList("c 0", "c 1"), replay("c"));
+        try {
+            replay("b");
+            Assert.fail("The recording should have been evicted, and read from its corrupted file");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void recordingLargerThanBudgetNotCached() throws IOException {
+        record("large", "response");
+        RecordCache.setBudget(Files.size(getPathToFile("large")) - 1);
+        replay("large");
+
+        corrupt("large");
+
+        try {
+            replay("large");
+            Assert.fail("The recording should not have been cached");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    private void record(String testMethod, String response) {
+        TestDataForRecording testData = new TestDataForRecording(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        testData.init(TEST_CLASS, testMethod);
+        for (int i = 0; i < 2; i++) {
+            PoCRecord record = new PoCRecord();
+            record.setRequest("getResponse: " + i);
+            record.setResponse(Collections.singletonList(response + " " + i));
+            testData.addRecord(record);
+        }
+        testData.finish();
+    }
+
+    private List<String> replay(String testMethod) {
+        TestDataForReplaying testData = new TestDataForReplaying(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        testData.init(TEST_CLASS, testMethod);
+        try {
+            PoCRecord first = testData.consumeFirstRecord(PoCRecord.class);
+            PoCRecord second = testData.consumeFirstRecord(PoCRecord.class);
+            Assert.assertFalse(testData.hasData());
+            //noinspection unchecked
+            return Arrays.asList(((List<String>) first.bindResponse(List.class, testDataHandler)).get(0),
+                    ((List<String>) second.bindResponse(List.class, testDataHandler)).get(0));
+        }
+        finally {
+            testData.finish();
+        }
+    }
+
+    /**
+     * Overwrites the recording with bytes that cannot be read, keeping its size and modification time.
+     */
+    private void corrupt(String testMethod) throws IOException {
+        Path pathToFile = getPathToFile(testMethod);
+        FileTime lastModified = Files.getLastModifiedTime(pathToFile);
+        byte[] garbage = new byte[(int) Files.size(pathToFile)];
+        Arrays.fill(garbage, (byte) '}');
+        Files.write(pathToFile, garbage);
+        Files.setLastModifiedTime(pathToFile, lastModified);
+    }
+
+    private Path getPathToFile(String testMethod) {
+        return pathToData.resolve(TEST_CLASS + "_" + testMethod + ".json");
+    }
+}
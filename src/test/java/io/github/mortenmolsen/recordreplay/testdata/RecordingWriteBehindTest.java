@@ -0,0 +1,32 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Morten Meiling Olsen
+ */
+public class RecordingWriteBehindTest {
+
+    @Test
+    public void errorOfWriteReported() throws InterruptedException {
+        AtomicBoolean nextWriteDone = new AtomicBoolean();
+        RecordingWriteBehind.submit("failing", () -> {
+            throw new StackOverflowError();
+        });
+        RecordingWriteBehind.submit("next", () -> nextWriteDone.set(true));
+
+        try {
+            RecordingWriteBehind.awaitOutstandingWrites();
+            Assert.fail("The failed write should be reported");
+        }
+        catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("failing (java.lang.StackOverflowError)"));
+        }
+        Assert.assertTrue(nextWriteDone.get());
+        // the failure is only reported once
+        RecordingWriteBehind.awaitOutstandingWrites();
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.testsystem.rr.PoCRecord;
+
+/**
+ * @author Morten Meiling Olsen
+ */
+public class SmileTestDataHandlerTest {
+
+    private static final String TEST_CLASS = "Smile";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path pathToData;
+    private TestDataHandler testDataHandler;
+
+    @Before
+    public void setUp() {
+        pathToData = temporaryFolder.getRoot().toPath();
+        testDataHandler = new SmileTestDataHandler();
+    }
+
+    @Test
+    public void recordingReplayed() throws IOException {
+        // long requests, which Smile itself does not share, each made a number of times
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            requests.add("getItems(category=" + (i % 3) + ", page=0, pageSize=100, sort=name, includeTags=true, includePrices=true)");
+        }
+
+        TestDataForRecording recordingTestData = new TestDataForRecording(pathToData.toString());
+        recordingTestData.setTestDataHandler(testDataHandler);
+        recordingTestData.init(TEST_CLASS, "replayed");
+        for (int i = 0; i < requests.size(); i++) {
+            PoCRecord record = new PoCRecord();
+            record.setRequest(requests.get(i));
+            record.setResponse(Collections.singletonList("response " + i));
+            recordingTestData.addRecord(record);
+        }
+        recordingTestData.finish();
+
+        String file = new String(Files.readAllBytes(pathToData.resolve(TEST_CLASS + "_replayed.smile")), StandardCharsets.ISO_8859_1);
+        Assert.assertEquals(1, count(file, requests.get(0)));
+        Assert.assertEquals(1, count(file, requests.get(1)));
+
+        TestDataForReplaying replayingTestData = new TestDataForReplaying(pathToData.toString());
+        replayingTestData.setTestDataHandler(testDataHandler);
+        replayingTestData.init(TEST_CLASS, "replayed");
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                PoCRecord record = replayingTestData.consumeFirstRecord(PoCRecord.class);
+                Assert.assertEquals(requests.get(i), record.getRequest());
+                Assert.assertEquals(Collections.singletonList("response " + i), record.bindResponse(List.class, testDataHandler));
+            }
+            Assert.assertFalse(replayingTestData.hasData());
+        }
+        finally {
+            replayingTestData.finish();
+        }
+    }
+
+    @Test
+    public void jsonRecordingRejected() throws IOException {
+        TestDataHandler jsonTestDataHandler = new ObjectMapperTestDataHandler(new ObjectMapper());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        jsonTestDataHandler.writeHeader(outputStream);
+        try (RecordWriter recordWriter = jsonTestDataHandler.writeRecords(outputStream)) {
+            PoCRecord record = new PoCRecord();
+            record.setRequest("getItems()");
+            recordWriter.write(record);
+        }
+
+        try {
+            TestDataFiles.readRecords(new ByteArrayInputStream(outputStream.toByteArray()), testDataHandler).close();
+            Assert.fail("A JSON recording should not be read as Smile");
+        }
+        catch (IOException e) {
+            Assert.assertEquals("Not a Smile test data file.", e.getMessage());
+        }
+    }
+
+    private static int count(String file, String request) {
+        int count = 0;
+        for (int index = file.indexOf(request); index != -1; index = file.indexOf(request, index + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,365 @@
+package io.github.mortenmolsen.recordreplay.testdata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.mortenmolsen.recordreplay.testsystem.rr.PoCRecord;
+
+/**
+ * Records test data to a temporary directory and replays it again.
+ *
+ * @author Morten Meiling Olsen
+ */
+public class TestDataRoundTripTest {
+
+    private static final String TEST_CLASS = "RoundTrip";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path pathToData;
+    private TestDataHandler testDataHandler;
+
+    @Before
+    public void setUp() {
+        pathToData = temporaryFolder.getRoot().toPath();
+        testDataHandler = new ObjectMapperTestDataHandler(new ObjectMapper());
+    }
+
+    @Test
+    public void compressedRecordingReplayed() throws IOException {
+        List<List<String>> responses = createResponses(20, 10);
+        record("compressed", testData -> testData.setCompressed(true), responses);
+
+        Assert.assertFalse(Files.exists(pathToData.resolve(TEST_CLASS + "_compressed.json")));
+        Assert.assertTrue(isGzipped(pathToData.resolve(TEST_CLASS + "_compressed.json.gz")));
+        Assert.assertEquals(responses, replay("compressed", testData -> { }));
+    }
+
+    @Test
+    public void compressionDetectedFromContentNotName() throws IOException {
+        List<List<String>> responses = createResponses(5, 10);
+        record("renamed", testData -> testData.setCompressed(true), responses);
+        Files.move(pathToData.resolve(TEST_CLASS + "_renamed.json.gz"), pathToData.resolve(TEST_CLASS + "_renamed.json"));
+
+        Assert.assertEquals(responses, replay("renamed", testData -> { }));
+    }
+
+    @Test
+    public void uncompressedRecordingPreferred() throws IOException {
+        record("both", testData -> testData.setCompressed(true), createResponses(3, 10));
+        // recording the uncompressed file again replaces the compressed one
+        List<List<String>> responses = createResponses(2, 10);
+        record("both", testData -> { }, responses);
+
+        Assert.assertFalse(Files.exists(pathToData.resolve(TEST_CLASS + "_both.json.gz")));
+        Assert.assertEquals(responses, replay("both", testData -> { }));
+    }
+
+    @Test
+    public void recordingWithoutHeaderReplayed() throws IOException {
+        List<List<String>> responses = createResponses(10, 10);
+        record("withoutHeader", testData -> { }, responses);
+        // like a file edited by hand, without the NUL char
+        Path pathToFile = pathToData.resolve(TEST_CLASS + "_withoutHeader.json");
+        byte[] file = Files.readAllBytes(pathToFile);
+        Assert.assertEquals(0, file[0]);
+        Files.write(pathToFile, Arrays.copyOfRange(file, 1, file.length));
+
+        Assert.assertEquals(responses, replay("withoutHeader", testData -> { }));
+        Assert.assertEquals(responses, replay("withoutHeader", testData -> testData.setMemoryMappingThreshold(0)));
+    }
+
+    @Test
+    public void interruptedRecordingFailsAtItsEnd() throws IOException {
+        assertInterruptedRecordingFailsAtItsEnd(false);
+    }
+
+    @Test
+    public void interruptedCompressedRecordingFailsAtItsEnd() throws IOException {
+        assertInterruptedRecordingFailsAtItsEnd(true);
+    }
+
+    private void assertInterruptedRecordingFailsAtItsEnd(boolean compressed) throws IOException {
+        String extension = compressed ? ".json.gz" : ".json";
+        List<List<String>> responses = createResponses(200, 10);
+        TestDataForRecording recording = new TestDataForRecording(pathToData.toString());
+        recording.setTestDataHandler(testDataHandler);
+        recording.setCompressed(compressed);
+        recording.init(TEST_CLASS, "complete");
+        addRecords(recording, responses);
+        // what the file holds if the recording is interrupted now
+        Files.copy(pathToData.resolve(TEST_CLASS + "_complete" + extension), pathToData.resolve(TEST_CLASS + "_interrupted" + extension));
+        recording.finish();
+
+        TestDataForReplaying testData = new TestDataForReplaying(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        testData.init(TEST_CLASS, "interrupted");
+        int replayed = 0;
+        try {
+            while (testData.hasData()) {
+                PoCRecord record = testData.consumeFirstRecord(PoCRecord.class);
+                Assert.assertEquals(responses.get(replayed), record.bindResponse(List.class, testDataHandler));
+                replayed++;
+            }
+            Assert.fail("The replay should fail at the end of the interrupted recording.");
+        }
+        catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("ends unexpectedly"));
+        }
+        finally {
+            testData.finish();
+        }
+        Assert.assertTrue("Only " + replayed + " records replayed", replayed > 0 && replayed < responses.size());
+        Assert.assertEquals(responses, replay("complete", replaying -> { }));
+    }
+
+    @Test
+    public void memoryMappedRecordingReplayedThroughIndex() throws IOException {
+        List<List<String>> responses = createResponses(50, 10);
+        record("mapped", testData -> { }, responses);
+        Path pathToIndex = pathToData.resolve(TEST_CLASS + "_mapped.json" + RecordIndex.EXTENSION);
+
+        Assert.assertEquals(responses, replay("mapped", testData -> testData.setMemoryMappingThreshold(0)));
+        Assert.assertTrue(Files.exists(pathToIndex));
+        // replayed again through the stored index
+        Assert.assertEquals(responses, replay("mapped", testData -> testData.setMemoryMappingThreshold(0)));
+    }
+
+    @Test
+    public void indexRebuiltWhenRecordingChanges() throws IOException {
+        record("changed", testData -> { }, createResponses(50, 10));
+        replay("changed", testData -> testData.setMemoryMappingThreshold(0));
+        List<List<String>> responses = createResponses(20, 5);
+        record("changed", testData -> { }, responses);
+
+        Assert.assertEquals(responses, replay("changed", testData -> testData.setMemoryMappingThreshold(0)));
+    }
+
+    @Test
+    public void brokenIndexRebuilt() throws IOException {
+        List<List<String>> responses = createResponses(50, 10);
+        record("broken", testData -> { }, responses);
+        Files.write(pathToData.resolve(TEST_CLASS + "_broken.json" + RecordIndex.EXTENSION), new byte[] {1, 2, 3});
+
+        Assert.assertEquals(responses, replay("broken", testData -> testData.setMemoryMappingThreshold(0)));
+        Assert.assertEquals(responses, replay("broken", testData -> testData.setMemoryMappingThreshold(0)));
+    }
+
+    @Test
+    public void compressedRecordingNotMemoryMapped() throws IOException {
+        List<List<String>> responses = createResponses(50, 10);
+        record("compressedNotMapped", testData -> testData.setCompressed(true), responses);
+
+        Assert.assertEquals(responses, replay("compressedNotMapped", testData -> testData.setMemoryMappingThreshold(0)));
+        Assert.assertFalse(Files.exists(pathToData.resolve(TEST_CLASS + "_compressedNotMapped.json.gz" + RecordIndex.EXTENSION)));
+    }
+
+    @Test
+    public void packedRecordingsReplayed() throws IOException {
+        List<List<String>> uncompressedResponses = createResponses(10, 10);
+        List<List<String>> compressedResponses = createResponses(5, 20);
+        record("packed", testData -> { }, uncompressedResponses);
+        record("packedCompressed", testData -> testData.setCompressed(true), compressedResponses);
+        TestDataPack.write(pathToData, testDataHandler);
+        Files.delete(pathToData.resolve(TEST_CLASS + "_packed.json"));
+        Files.delete(pathToData.resolve(TEST_CLASS + "_packedCompressed.json.gz"));
+
+        Assert.assertEquals(uncompressedResponses, replay("packed", testData -> { }));
+        Assert.assertEquals(compressedResponses, replay("packedCompressed", testData -> { }));
+    }
+
+    @Test
+    public void looseRecordingOverridesPack() throws IOException {
+        record("overridden", testData -> { }, createResponses(10, 10));
+        TestDataPack.write(pathToData, testDataHandler);
+        List<List<String>> responses = createResponses(3, 10);
+        record("overridden", testData -> { }, responses);
+
+        Assert.assertEquals(responses, replay("overridden", testData -> { }));
+    }
+
+    @Test
+    public void onlyRecordingsPacked() throws IOException {
+        record("indexed", testData -> { }, createResponses(10, 10));
+        replay("indexed", testData -> testData.setMemoryMappingThreshold(0));
+        Files.write(pathToData.resolve("notes.txt"), new byte[] {1, 2, 3});
+        TestDataPack.write(pathToData, testDataHandler);
+
+        TestDataPack pack = TestDataPack.get(pathToData);
+        Assert.assertNotNull(pack);
+        Assert.assertTrue(pack.contains(TEST_CLASS + "_indexed.json"));
+        Assert.assertFalse(pack.contains(TEST_CLASS + "_indexed.json" + RecordIndex.EXTENSION));
+        Assert.assertFalse(pack.contains("notes.txt"));
+    }
+
+    @Test
+    public void spilledResponsesReplayed() throws IOException, InterruptedException {
+        assertSpilledResponsesReplayed("spilled", testData -> { });
+    }
+
+    @Test
+    public void spilledResponsesOfCompressedRecordingReplayed() throws IOException, InterruptedException {
+        assertSpilledResponsesReplayed("spilledCompressed", testData -> testData.setCompressed(true));
+    }
+
+    @Test
+    public void spilledResponsesOfWriteBehindRecordingReplayed() throws IOException, InterruptedException {
+        assertSpilledResponsesReplayed("spilledWriteBehind", testData -> testData.setWriteBehind(true));
+        // the spilled responses are moved in place from the temporary directory
+        try (Stream<Path> files = Files.list(pathToData)) {
+            Assert.assertEquals(Arrays.asList(TEST_CLASS + "_spilledWriteBehind.json", TEST_CLASS + "_spilledWriteBehind.json" + TestData.SPILLED_RESPONSES_EXTENSION),
+                    files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    private void assertSpilledResponsesReplayed(String testMethod, Consumer<TestDataForRecording> configuration) throws IOException, InterruptedException {
+        // every other response is large enough to be spilled
+        List<List<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(Collections.nCopies(i % 2 == 0 ? 50 : 1, "response " + i));
+        }
+        record(testMethod, configuration.andThen(testData -> testData.setSpillResponseThreshold(100)), responses);
+        RecordingWriteBehind.awaitOutstandingWrites();
+
+        Assert.assertEquals(5, countSpilledResponses(testMethod));
+        Assert.assertEquals(responses, replay(testMethod, testData -> { }));
+    }
+
+    @Test
+    public void oldSpilledResponsesRemovedWhenRecordingAgain() throws IOException, InterruptedException {
+        for (boolean writeBehind : new boolean[] {false, true}) {
+            String testMethod = writeBehind ? "spilledAgainWriteBehind" : "spilledAgain";
+            Consumer<TestDataForRecording> configuration = testData -> {
+                testData.setSpillResponseThreshold(100);
+                testData.setWriteBehind(writeBehind);
+            };
+            record(testMethod, configuration, createResponses(4, 50));
+            RecordingWriteBehind.awaitOutstandingWrites();
+            List<List<String>> responses = createResponses(1, 50);
+            record(testMethod, configuration, responses);
+            RecordingWriteBehind.awaitOutstandingWrites();
+
+            Assert.assertEquals(1, countSpilledResponses(testMethod));
+            Assert.assertEquals(responses, replay(testMethod, testData -> { }));
+        }
+    }
+
+    @Test
+    public void sharedResponsesStoredOnceAndReplayed() throws IOException {
+        // the same large response is recorded by both tests
+        List<List<String>> responses = createResponses(1, 50);
+        record("sharing", testData -> testData.setSharedResponseThreshold(100), responses);
+        record("sharingAgain", testData -> testData.setSharedResponseThreshold(100), responses);
+
+        try (Stream<Path> files = Files.list(pathToData.resolve(SharedResponseStore.DIRECTORY))) {
+            Assert.assertEquals(1, files.count());
+        }
+        Assert.assertEquals(responses, replay("sharing", testData -> { }));
+        Assert.assertEquals(responses, replay("sharingAgain", testData -> { }));
+    }
+
+    @Test
+    public void nextTestRecordedAfterFinishFailed() {
+        TestDataForRecording testData = new TestDataForRecording(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        testData.init(TEST_CLASS, "failed");
+        addRecords(testData, createResponses(3, 10));
+        // the last record is written when the recording is finished, and its response cannot be serialized
+        PoCRecord record = new PoCRecord();
+        record.setRequest("getResponse: 3");
+        record.setResponse(new Object());
+        testData.addRecord(record);
+        try {
+            testData.finish();
+            Assert.fail("The recording should fail");
+        }
+        catch (Exception e) {
+            Assert.assertTrue(e.toString(), e instanceof IOException);
+        }
+
+        List<List<String>> responses = createResponses(2, 10);
+        testData.init(TEST_CLASS, "afterFailed");
+        addRecords(testData, responses);
+        testData.finish();
+
+        Assert.assertEquals(responses, replay("afterFailed", replaying -> { }));
+    }
+
+    private long countSpilledResponses(String testMethod) throws IOException {
+        try (Stream<Path> files = Files.list(pathToData.resolve(TEST_CLASS + "_" + testMethod + ".json" + TestData.SPILLED_RESPONSES_EXTENSION))) {
+            return files.count();
+        }
+    }
+
+    private static List<List<String>> createResponses(int numberOfResponses, int responseSize) {
+        List<List<String>> responses = new ArrayList<>();
+        for (int i = 0; i < numberOfResponses; i++) {
+            responses.add(Collections.nCopies(responseSize, "response " + i));
+        }
+        return responses;
+    }
+
+    private void record(String testMethod, Consumer<TestDataForRecording> configuration, List<List<String>> responses) {
+        TestDataForRecording testData = new TestDataForRecording(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        configuration.accept(testData);
+        testData.init(TEST_CLASS, testMethod);
+        addRecords(testData, responses);
+        testData.finish();
+    }
+
+    private static void addRecords(TestDataForRecording testData, List<List<String>> responses) {
+        for (int i = 0; i < responses.size(); i++) {
+            PoCRecord record = new PoCRecord();
+            record.setRequest("getResponse: " + i);
+            record.setResponse(responses.get(i));
+            testData.addRecord(record);
+        }
+    }
+
+    private List<List<String>> replay(String testMethod, Consumer<TestDataForReplaying> configuration) {
+        TestDataForReplaying testData = new TestDataForReplaying(pathToData.toString());
+        testData.setTestDataHandler(testDataHandler);
+        configuration.accept(testData);
+        testData.init(TEST_CLASS, testMethod);
+        List<List<String>> responses = new ArrayList<>();
+        try {
+            for (int i = 0; testData.hasData(); i++) {
+                PoCRecord record = testData.consumeFirstRecord(PoCRecord.class);
+                Assert.assertEquals("getResponse: " + i, record.getRequest());
+                //noinspection unchecked
+                responses.add(record.bindResponse(List.class, testDataHandler));
+            }
+        }
+        finally {
+            testData.finish();
+        }
+        return responses;
+    }
+
+    private static boolean isGzipped(Path pathToFile) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(pathToFile)) {
+            byte[] magic = new byte[2];
+            return inputStream.read(magic) == 2
+                    && Arrays.equals(magic, new byte[] {(byte) GZIPInputStream.GZIP_MAGIC, (byte) (GZIPInputStream.GZIP_MAGIC >> 8)});
+        }
+    }
+}